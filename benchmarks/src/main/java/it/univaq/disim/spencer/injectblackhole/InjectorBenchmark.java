@@ -0,0 +1,66 @@
+package it.univaq.disim.spencer.injectblackhole;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.univaq.disim.spencer.injectblackhole.analysis.Method;
+
+/**
+ * Full round trip: select the method, inject the delay, save and filter the modifications.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class InjectorBenchmark {
+
+    private static final String TARGET_METHOD = SyntheticCodeBase.PACKAGE + ".Class0.method0(int)";
+
+    // The enums are package-private, while the JMH generated code lives in a sub-package
+    @Param({ "BEGIN", "RANDOM_POSITION" })
+    private String injectionMode;
+
+    @Param({ "SPOON", "SPLICE" })
+    private String backend;
+
+    private Path root;
+    private Injector injector;
+    private Method method;
+
+    @Setup(Level.Invocation)
+    public void setup() throws IOException {
+        // A fresh code base each time, since the injection modifies it
+        root = SyntheticCodeBase.generate(20, 10, 8);
+        injector = new Injector(root, 1000);
+        injector.setSeed(42);
+        injector.setBackend(Backend.valueOf(backend));
+        method = injector.findMethod(TARGET_METHOD).orElseThrow();
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        SyntheticCodeBase.delete(root);
+    }
+
+    @Benchmark
+    public void injectInMethod() {
+        injector.injectInMethod(method, InjectionMode.valueOf(injectionMode));
+    }
+}
@@ -0,0 +1,93 @@
+package it.univaq.disim.spencer.injectblackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Generates a synthetic code base to benchmark the tool on targets of a given size.
+ */
+public class SyntheticCodeBase {
+
+    public static final String PACKAGE = "com.example.synthetic";
+
+    private SyntheticCodeBase() {
+    }
+
+    /**
+     * Generate a method with nested statements (blocks, loops, try/catch, invocations)
+     * @param name the method name
+     * @param statements the number of top-level statement groups
+     * @return the source of the method
+     */
+    public static String method(String name, int statements) {
+        StringBuilder source = new StringBuilder();
+        source.append("    public int ").append(name).append("(int arg) {\n");
+        source.append("        int a = arg;\n");
+        for (int i = 0; i < statements; i++) {
+            switch (i % 4) {
+                case 0 -> source.append("        if (a > ").append(i).append(") {\n")
+                                .append("            a = a - 1;\n")
+                                .append("        }\n");
+                case 1 -> source.append("        for (int i").append(i).append(" = 0; i").append(i)
+                                .append(" < 3; i").append(i).append("++) {\n")
+                                .append("            a += i").append(i).append(";\n")
+                                .append("        }\n");
+                case 2 -> source.append("        try {\n")
+                                .append("            a = Integer.parseInt(Integer.toString(a));\n")
+                                .append("        } catch (NumberFormatException e) {\n")
+                                .append("            a = 0;\n")
+                                .append("        }\n");
+                default -> source.append("        a = Math.max(a, ").append(i).append(");\n");
+            }
+        }
+        source.append("        return a;\n");
+        source.append("    }\n");
+        return source.toString();
+    }
+
+    /**
+     * Generate a class
+     * @param name the class name
+     * @param methods the number of methods
+     * @param statements the number of statement groups per method
+     * @return the source of the class
+     */
+    public static String type(String name, int methods, int statements) {
+        StringBuilder source = new StringBuilder();
+        source.append("package ").append(PACKAGE).append(";\n\n");
+        source.append("public class ").append(name).append(" {\n\n");
+        for (int m = 0; m < methods; m++) {
+            source.append(method("method" + m, statements)).append("\n");
+        }
+        source.append("}\n");
+        return source.toString();
+    }
+
+    /**
+     * Write a synthetic code base in a new temporary directory
+     * @param classes the number of classes
+     * @param methods the number of methods per class
+     * @param statements the number of statement groups per method
+     * @return the source root
+     */
+    public static Path generate(int classes, int methods, int statements) throws IOException {
+        Path root = Files.createTempDirectory("synthetic");
+        Path packageDir = Files.createDirectories(root.resolve(PACKAGE.replace('.', '/')));
+        for (int c = 0; c < classes; c++) {
+            String name = "Class" + c;
+            Files.writeString(packageDir.resolve(name + ".java"), type(name, methods, statements));
+        }
+        return root;
+    }
+
+    public static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package it.univaq.disim.spencer.injectblackhole.analysis;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.univaq.disim.spencer.injectblackhole.SyntheticCodeBase;
+import spoon.reflect.declaration.CtMethod;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CodeBaseBenchmark {
+
+    @Param({ "10", "100" })
+    private int classes;
+
+    private Path root;
+    private CodeBase loaded;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = SyntheticCodeBase.generate(classes, 10, 8);
+        loaded = new CodeBase(root);
+        loaded.load();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticCodeBase.delete(root);
+    }
+
+    @Benchmark
+    public CodeBase load() {
+        CodeBase codeBase = new CodeBase(root);
+        codeBase.load();
+        return codeBase;
+    }
+
+    @Benchmark
+    public List<CtMethod<?>> getMethods() {
+        return loaded.getMethods();
+    }
+
+    @Benchmark
+    public MethodIndex buildMethodIndex() {
+        return MethodIndex.build(List.of(root));
+    }
+}
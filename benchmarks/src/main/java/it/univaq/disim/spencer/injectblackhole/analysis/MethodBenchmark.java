@@ -0,0 +1,57 @@
+package it.univaq.disim.spencer.injectblackhole.analysis;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.univaq.disim.spencer.injectblackhole.SyntheticCodeBase;
+import spoon.reflect.code.CtStatement;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MethodBenchmark {
+
+    // Small methods, and huge generated ones
+    @Param({ "10", "2000" })
+    private int statements;
+
+    private Path root;
+    private Method method;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = SyntheticCodeBase.generate(1, 1, statements);
+        CodeBase codeBase = new CodeBase(root);
+        codeBase.load();
+        method = new Method(codeBase.getMethods().get(0));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticCodeBase.delete(root);
+    }
+
+    @Benchmark
+    public List<CtStatement> getTopLevelStatements() {
+        return method.getTopLevelStatements();
+    }
+}
@@ -0,0 +1,92 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.univaq.disim.spencer.injectblackhole.SyntheticCodeBase;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HunkFilterBenchmark {
+
+    private static final String KEYWORD = "Blackhole.consumeCPU";
+    private static final String INVOCATION = "        org.openjdk.jmh.infra.Blackhole.consumeCPU(1000000L);\n";
+
+    // Number of methods of the patched class: 5000 gives megabyte-sized patches and sources
+    @Param({ "50", "5000" })
+    private int methods;
+
+    private String patch;
+    private String original;
+    // The original with the injections only, which the filter keeps as a whole
+    private String modified;
+    // The injections with some reformatting next to them, which the filter rejects
+    private String reformatted;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        original = SyntheticCodeBase.type("Patched", methods, 8);
+
+        // Every other method gets an injection, the others some spurious reformatting in the patch
+        StringBuilder modifiedSource = new StringBuilder();
+        StringBuilder patchSource = new StringBuilder("diff --git a/Patched.java b/Patched.java\n")
+            .append("--- a/Patched.java\n")
+            .append("+++ b/Patched.java\n");
+        int line = 0;
+        int m = 0;
+        for (String sourceLine : original.lines().toList()) {
+            line++;
+            modifiedSource.append(sourceLine).append("\n");
+            if (sourceLine.contains("public int method")) {
+                boolean inject = m++ % 2 == 0;
+                patchSource.append("@@ -%d,3 +%d,4 @@\n".formatted(line, line))
+                    .append(" ").append(sourceLine).append("\n")
+                    .append(inject ? "+" + INVOCATION : "-        int a = arg;\n+        int a  = arg;\n")
+                    .append("         int a = arg;\n");
+                modifiedSource.append(inject ? INVOCATION : "");
+            }
+        }
+        patch = patchSource.toString();
+        modified = modifiedSource.toString();
+        reformatted = modified.replace("a = a - 1;", "a = a-1;");
+        if (!SnapshotHunkFilter.filter(original, modified, KEYWORD).equals(modified)) {
+            throw new IllegalStateException("The filter drops some injections of the modified source");
+        }
+    }
+
+    @Benchmark
+    public String fixPatch() {
+        return GitHunkFilter.fixPatch(patch, KEYWORD);
+    }
+
+    @Benchmark
+    public String snapshotFilter() {
+        return SnapshotHunkFilter.filter(original, modified, KEYWORD);
+    }
+
+    @Benchmark
+    public String snapshotFilterRejected() {
+        try {
+            return SnapshotHunkFilter.filter(original, reformatted, KEYWORD);
+        } catch (RuntimeException e) {
+            // The reformatting is in the hunks of the injections, which contain removals then
+            return e.getMessage();
+        }
+    }
+}
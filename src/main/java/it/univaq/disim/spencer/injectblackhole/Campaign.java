@@ -0,0 +1,237 @@
+package it.univaq.disim.spencer.injectblackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import it.univaq.disim.spencer.injectblackhole.injection.Injection;
+import it.univaq.disim.spencer.injectblackhole.selection.WeightedSampler;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.ParentCommand;
+
+/**
+ * Generate many variants of the target library, each with different injected methods.
+ * The target is analyzed once, then every variant is injected in parallel in its own
+ * git worktree (or copy), with its own seeded random stream.
+ */
+@Command(
+    name = "campaign",
+    mixinStandardHelpOptions = true,
+    description = "Inject the delay in many variants of the target library, in parallel. "
+        + "The target and delay options are the ones of the main command, and -n is the number of injections per variant."
+)
+public class Campaign implements Callable<Integer> {
+    private static final Logger LOGGER = Logger.getLogger(Campaign.class.getName());
+    private static final String MANIFEST_FILE = "manifest.json";
+
+    public record Variant(int id, String path, long seed, List<Injection> injections, String error) {
+    }
+
+    public record Manifest(String target, long delay, String mode, long seed, List<Variant> variants) {
+    }
+
+    @ParentCommand
+    private InjectBlackhole options;
+
+    @Option(names = { "--variants" }, required = true,
+            description = "Number of variants to generate")
+    private int numVariants;
+
+    @Option(names = { "-o", "--output" }, required = true,
+            description = "Directory of the variants and of the manifest. Variants of a git repository are "
+                + "worktrees of its HEAD (uncommitted changes are not included), otherwise copies of the target")
+    private Path outputDir;
+
+    @Option(names = { "--threads" },
+            description = "Number of variants injected in parallel (default: number of cores)")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private Path gitTopLevel;
+
+    @Override
+    public Integer call() throws Exception {
+        options.requireInjectionOptions();
+        Path target = options.getTargetLibraryPath().toAbsolutePath().normalize();
+        if (!Files.isDirectory(target)) {
+            LOGGER.severe("Invalid path: " + target);
+            return 1;
+        }
+        if (options.getMode() == Mode.TARGETED) {
+            LOGGER.severe("Campaigns require the RANDOM_METHOD or PROFILE_GUIDED mode");
+            return 1;
+        }
+        if (options.getBackend() == Backend.BYTECODE) {
+            LOGGER.severe("Campaigns inject the source code, the BYTECODE backend is not supported");
+            return 1;
+        }
+        if (Files.exists(outputDir)) {
+            try (Stream<Path> entries = Files.list(outputDir)) {
+                if (entries.findAny().isPresent()) {
+                    LOGGER.severe("Output directory is not empty: " + outputDir);
+                    return 1;
+                }
+            }
+        }
+        Files.createDirectories(outputDir);
+
+        long delay;
+        try {
+            delay = options.resolveDelay();
+        } catch (IllegalArgumentException e) {
+            LOGGER.severe(e.getMessage());
+            return 1;
+        }
+
+        gitTopLevel = findGitTopLevel(target);
+        if (gitTopLevel == null) {
+            LOGGER.info("Target is not in a git repository, variants are copies");
+        } else if (!runGit(gitTopLevel, "status", "--porcelain").isBlank()) {
+            LOGGER.warning("The uncommitted changes of the target are not in the variants, which are worktrees of HEAD");
+        }
+
+        // Analyze the target once: every variant shares the index and the candidates. The variants of a git
+        // repository are worktrees of HEAD, so the analysis is too, in the worktree of the first variant
+        Path firstVariant = gitTopLevel != null && numVariants > 0 ? createVariant(variantDir(0), target) : null;
+        Path cacheDir = options.getCacheDir() != null ? options.getCacheDir() : outputDir.resolve(".inject-blackhole");
+        Injector analysis = options.createInjector(firstVariant != null ? firstVariant : target, delay);
+        analysis.useSiteCache(cacheDir);
+        WeightedSampler<String> sampler;
+        try {
+            sampler = options.createSampler(analysis);
+        } catch (IllegalArgumentException e) {
+            LOGGER.severe(e.getMessage());
+            return 1;
+        }
+
+        // Derive the seed of each variant upfront, so that the output does not depend on the scheduling
+        long seed = options.getRandomSeed() != 0 ? options.getRandomSeed() : new Random().nextLong();
+        Random seeds = new Random(seed);
+        LOGGER.info("Generating %d variants with seed %d on %d threads".formatted(numVariants, seed, threads));
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Variant> variants = new ArrayList<>();
+        try {
+            List<Future<Variant>> futures = new ArrayList<>();
+            for (int id = 0; id < numVariants; id++) {
+                int variantId = id;
+                long variantSeed = seeds.nextLong();
+                Path created = variantId == 0 ? firstVariant : null;
+                futures.add(executor.submit(() -> generateVariant(variantId, variantSeed, target, created, delay, analysis,
+                                                                  sampler)));
+            }
+            for (Future<Variant> future : futures) {
+                variants.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error generating the variants", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        Path manifest = outputDir.resolve(MANIFEST_FILE);
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(manifest.toFile(),
+            new Manifest(target.toString(), delay, options.getMode().toString(), seed, variants));
+        long failed = variants.stream().filter(variant -> variant.error() != null).count();
+        LOGGER.info("Generated %d variants (%d failed), manifest written to %s".formatted(numVariants, failed, manifest));
+        return failed == 0 ? 0 : 1;
+    }
+
+    private Path variantDir(int id) {
+        return outputDir.resolve("variant-%04d".formatted(id)).toAbsolutePath();
+    }
+
+    // The target of the variant is created here, unless it is already (the worktree of the analysis)
+    private Variant generateVariant(int id, long seed, Path target, Path created, long delay, Injector analysis,
+                                    WeightedSampler<String> sampler) {
+        Path variantDir = variantDir(id);
+        List<Injection> injections = new ArrayList<>();
+        try {
+            Path variantTarget = created != null ? created : createVariant(variantDir, target);
+            Injector injector = options.createInjector(variantTarget, delay);
+            injector.setSeed(seed);
+            injector.useSiteCache(analysis.getSiteCache().relocate(variantTarget));
+            options.injectInRandomMethods(injector, new WeightedSampler<>(sampler), injections);
+            LOGGER.info("Variant %d: %d injections".formatted(id, injections.size()));
+            return new Variant(id, variantDir.toString(), seed, injections, null);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            LOGGER.severe("Variant %d: %s".formatted(id, e.getMessage()));
+            return new Variant(id, variantDir.toString(), seed, injections, e.getMessage());
+        }
+    }
+
+    private Path createVariant(Path variantDir, Path target) throws IOException, InterruptedException {
+        if (gitTopLevel == null) {
+            copyDirectory(target, variantDir);
+            return variantDir;
+        }
+        // Worktrees share the repository metadata, so git must not add them concurrently
+        synchronized (this) {
+            runGit(gitTopLevel, "worktree", "add", "--detach", variantDir.toString(), "HEAD");
+        }
+        return variantDir.resolve(gitTopLevel.relativize(target.toRealPath()));
+    }
+
+    private static Path findGitTopLevel(Path target) throws IOException, InterruptedException {
+        try {
+            return Path.of(runGit(target, "rev-parse", "--show-toplevel").strip()).toRealPath();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static String runGit(Path directory, String... arguments) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of("git"));
+        command.addAll(List.of(arguments));
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.directory(directory.toFile());
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+        String output;
+        try (InputStream stdout = process.getInputStream()) {
+            output = new String(stdout.readAllBytes());
+        }
+        if (process.waitFor() != 0) {
+            throw new RuntimeException("git %s failed: %s".formatted(String.join(" ", arguments), output.strip()));
+        }
+        return output;
+    }
+
+    private void copyDirectory(Path source, Path destination) throws IOException {
+        // The output directory can be in the target, and it is written while the variants are copied
+        Path output = outputDir.toAbsolutePath().normalize();
+        Files.walkFileTree(source, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                if (directory.toAbsolutePath().normalize().equals(output)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                Files.copy(directory, destination.resolve(source.relativize(directory).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.copy(file, destination.resolve(source.relativize(file).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -3,21 +3,51 @@ package it.univaq.disim.spencer.injectblackhole;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import it.univaq.disim.spencer.injectblackhole.analysis.Method;
+import it.univaq.disim.spencer.injectblackhole.bytecode.BytecodeInjector;
+import it.univaq.disim.spencer.injectblackhole.bytecode.DelayWeaver;
+import it.univaq.disim.spencer.injectblackhole.exception.NoCandidateMethodsLeft;
 import it.univaq.disim.spencer.injectblackhole.exception.NoSuitableStatementsInMethod;
 import it.univaq.disim.spencer.injectblackhole.injection.GitHunkFilter;
+import it.univaq.disim.spencer.injectblackhole.injection.Guard;
+import it.univaq.disim.spencer.injectblackhole.injection.Injection;
+import it.univaq.disim.spencer.injectblackhole.injection.Jitter;
+import it.univaq.disim.spencer.injectblackhole.injection.Kernel;
+import it.univaq.disim.spencer.injectblackhole.profile.Profile;
+import it.univaq.disim.spencer.injectblackhole.profile.ProfileSampler;
+import it.univaq.disim.spencer.injectblackhole.profile.ProfileWeight;
+import it.univaq.disim.spencer.injectblackhole.selection.SelectionWeight;
+import it.univaq.disim.spencer.injectblackhole.selection.WeightedSampler;
+import it.univaq.disim.spencer.injectblackhole.injection.Calibration;
+import it.univaq.disim.spencer.injectblackhole.injection.Calibrator;
+import it.univaq.disim.spencer.injectblackhole.injection.CompilationCheck;
+import it.univaq.disim.spencer.injectblackhole.injection.DelayStyle;
+import it.univaq.disim.spencer.injectblackhole.injection.Distribution;
 import picocli.CommandLine;
+import picocli.CommandLine.ArgGroup;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.ITypeConverter;
+import picocli.CommandLine.Model.CommandSpec;
 import picocli.CommandLine.Option;
+import picocli.CommandLine.ParameterException;
+import picocli.CommandLine.Spec;
+import picocli.CommandLine.TypeConversionException;
 
 enum Mode {
     TARGETED,
-    RANDOM_METHOD
+    RANDOM_METHOD,
+    PROFILE_GUIDED
 }
 
 enum InjectionMode {
@@ -25,23 +55,59 @@ enum InjectionMode {
     RANDOM_POSITION
 }
 
+enum Backend {
+    SPOON,
+    SPLICE,
+    BYTECODE
+}
+
+enum PatchEngine {
+    IN_MEMORY,
+    GIT
+}
+
 @Command(
     name = "inject-blackhole",
     mixinStandardHelpOptions = true,
     version = "inject-blackhole 1.0",
-    description = "Inject a delay (CPU busy) using a JMH Blackhole"
+    description = "Inject a delay (CPU busy) using a JMH Blackhole",
+    subcommands = { Campaign.class, Measure.class, Serve.class }
 )
 public class InjectBlackhole implements Callable<Integer> {
     private static final Logger LOGGER = Logger.getLogger(InjectBlackhole.class.getName());
-    private Injector injector;
 
-    @Option(names = { "-t", "--target" }, required = true,
-            description = "The target library base path")
+    @Spec
+    private CommandSpec spec;
+
+    // Required to inject, but not by the measure subcommand: see requireInjectionOptions()
+    @Option(names = { "-t", "--target" },
+            description = "The target library base path (required, except to measure)")
     private Path targetLibraryPath;
 
-    @Option(names = { "-d", "--delay" }, required = true,
-            description = "The delay in number of tokens")
-    private long delay;
+    static class DelayOptions {
+        @Option(names = { "-d", "--delay" }, required = true,
+                description = "The delay in the unit of the kernel (number of tokens for CPU)")
+        Long tokens;
+
+        @Option(names = { "--delay-ns" }, required = true,
+                description = "The delay in nanoseconds, translated into tokens with the calibration of this machine")
+        Long nanos;
+
+        @Option(names = { "--delay-us" }, required = true,
+                description = "The delay in microseconds, translated into tokens with the calibration of this machine")
+        Long micros;
+    }
+
+    @ArgGroup(exclusive = true, multiplicity = "0..1")
+    private DelayOptions delayOptions;
+
+    @Option(names = { "--calibration-file" }, defaultValue = "${sys:user.home}/.inject-blackhole/calibration.properties",
+            description = "Cache of the per-machine calibrations (default: ${DEFAULT-VALUE})")
+    private Path calibrationFile;
+
+    @Option(names = { "--recalibrate" },
+            description = "Measure the cost of a token again, even if a calibration is cached")
+    private boolean recalibrate;
 
     @Option(names = { "-m", "--mode" }, defaultValue = "TARGETED",
             description = "Mode: ${COMPLETION-CANDIDATES}")
@@ -63,109 +129,479 @@ public class InjectBlackhole implements Callable<Integer> {
             description = "Number of injections to perform (each in a different method)")
     private int numInjections;
 
-    private Method selectRandomMethod() {
-        Method method = null;
-        while (method == null) {
-            Path classFile = injector.getRandomJavaFile();
-            Optional<Method> optionalMethod = injector.getRandomMethod(classFile);
-            if (optionalMethod.isPresent()) {
-                method = optionalMethod.get();
+    @Option(names = { "--profile" },
+            description = "JFR recording (.jfr) or collapsed stacks of the target's benchmarks, for the profile-guided mode")
+    private Path profileFile;
+
+    @Option(names = { "--profile-weight" }, defaultValue = "SELF",
+            description = "Weight the methods by their CPU time: ${COMPLETION-CANDIDATES}")
+    private ProfileWeight profileWeight;
+
+    @Option(names = { "--min-percentile" }, defaultValue = "0",
+            description = "Only select methods at least this hot in the profile (0-100)")
+    private double minPercentile;
+
+    @Option(names = { "--max-percentile" }, defaultValue = "100",
+            description = "Only select methods at most this hot in the profile (0-100)")
+    private double maxPercentile;
+
+    @Option(names = { "--selection-weight" }, defaultValue = "FILE",
+            description = "Weight of the methods in random-method mode: ${COMPLETION-CANDIDATES}")
+    private SelectionWeight selectionWeight;
+
+    @Option(names = { "--include" }, split = ",",
+            description = "Globs of the Java files to consider, relative to the target (default: all)")
+    private List<String> includes = new ArrayList<>();
+
+    @Option(names = { "--exclude" }, split = ",",
+            description = "Globs of the Java files to skip, relative to the target, besides tests, build outputs, "
+                + "generated sources, package-info.java and module-info.java")
+    private List<String> excludes = new ArrayList<>();
+
+    @Option(names = { "--max-files" },
+            description = "Only parse this many Java files, drawn uniformly, for trees too big to be parsed at once")
+    private int maxFiles;
+
+    @Option(names = { "--batch" },
+            description = "Inject in the models first, then write each file once and filter all the modifications "
+                + "with a single patch (a single git apply with the GIT patch engine)")
+    private boolean batch;
+
+    @Option(names = { "--compile-check" },
+            description = "Compile each modified file in memory before writing it, and move the delay to another "
+                + "position when it adds a compilation error (e.g., an unreachable statement)")
+    private boolean compileCheck;
+
+    @Option(names = { "--classpath" }, split = "${sys:path.separator}",
+            description = "Classpath of the target library for --compile-check (default: missing symbols are tolerated)")
+    private List<Path> classpath = new ArrayList<>();
+
+    @Option(names = { "--shared-model" },
+            description = "Parse the target library once and reuse the model for all the injections")
+    private boolean sharedModel;
+
+    @Option(names = { "--model-cache-units" }, defaultValue = "" + Injector.DEFAULT_MODEL_CACHE_UNITS,
+            description = "Maximum number of single-file models kept in memory between lookups, 0 for no limit (default: ${DEFAULT-VALUE})")
+    private int modelCacheUnits;
+
+    @Option(names = { "--model-cache-mb" },
+            description = "Estimated heap budget of the single-file models kept in memory, in MB (default: no limit)")
+    private long modelCacheMegabytes;
+
+    @Option(names = { "--cache-dir" },
+            description = "Directory of the persistent method index (e.g., .inject-blackhole), to skip re-parsing unchanged files")
+    private Path cacheDir;
+
+    @Option(names = { "--patch-engine" }, defaultValue = "IN_MEMORY",
+            description = "Engine filtering the modifications: ${COMPLETION-CANDIDATES}")
+    private PatchEngine patchEngine;
+
+    @Option(names = { "--backend" }, defaultValue = "SPOON",
+            description = "Injection backend (SPLICE writes the statement into the original source without pretty-printing, "
+                + "BYTECODE rewrites the classes of a jar or class directory): ${COMPLETION-CANDIDATES}")
+    private Backend backend;
+
+    @Option(names = { "-o", "--output" },
+            description = "Output jar or class directory of the BYTECODE backend")
+    private Path outputPath;
+
+    @Option(names = { "--delay-style" }, defaultValue = "LITERAL",
+            description = "LITERAL writes the tokens in the injected statement, RUNTIME calls a generated class "
+                + "that reads them at startup, so that one build serves many delays, and that can count the calls "
+                + "of each site (-Dinject.blackhole.stats=FILE): ${COMPLETION-CANDIDATES}")
+    private DelayStyle delayStyle;
+
+    @Option(names = { "--kernel" }, defaultValue = "CPU", converter = KernelConverter.class,
+            description = "Code of the delay: CPU and LOCK (tokens), ALLOC and IO (bytes), MEMORY (steps of a random walk), "
+                + "PARK (nanoseconds): ${COMPLETION-CANDIDATES}, in any case")
+    private Kernel kernel;
+
+    // The kernels are also given in lower case, e.g., --kernel park
+    static class KernelConverter implements ITypeConverter<Kernel> {
+        @Override
+        public Kernel convert(String value) {
+            try {
+                return Kernel.valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new TypeConversionException("expected one of %s (case-insensitive) but was '%s'"
+                    .formatted(Arrays.toString(Kernel.values()), value));
             }
         }
-        return method;
     }
 
-    private boolean injectInMethod(Method method) {
+    @Option(names = { "--fire-probability" }, defaultValue = "1",
+            description = "Fraction of the calls that fire the delay, to add tail latency rather than shift the mean "
+                + "(RUNTIME delay style, default: ${DEFAULT-VALUE})")
+    private double fireProbability;
+
+    @Option(names = { "--fire-every" }, defaultValue = "1",
+            description = "Only every N-th call of an injected method by a thread fires the delay "
+                + "(RUNTIME delay style, default: ${DEFAULT-VALUE})")
+    private long fireEvery;
+
+    @Option(names = { "--delay-distribution" }, defaultValue = "CONSTANT",
+            description = "Distribution of the delay of each call, around the given delay, drawn from a table "
+                + "precomputed from the seed (RUNTIME delay style): ${COMPLETION-CANDIDATES}")
+    private Distribution delayDistribution;
+
+    @Option(names = { "--distribution-shape" },
+            description = "Parameter of the distribution: relative half-width of UNIFORM (default 1), "
+                + "sigma of LOGNORMAL (default 1), alpha of PARETO (default 2)")
+    private Double distributionShape;
+
+    Path getTargetLibraryPath() {
+        return targetLibraryPath;
+    }
+
+    String getTargetMethod() {
+        return targetMethod;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    Backend getBackend() {
+        return backend;
+    }
+
+    int getRandomSeed() {
+        return randomSeed;
+    }
+
+    int getNumInjections() {
+        return numInjections;
+    }
+
+    Path getCacheDir() {
+        return cacheDir;
+    }
+
+    /**
+     * Check the options that every injection needs, but that picocli cannot require
+     * without requiring them for the measure subcommand as well
+     */
+    void requireInjectionOptions() {
+        if (targetLibraryPath == null) {
+            throw new ParameterException(spec.commandLine(), "Missing required option: '--target=<targetLibraryPath>'");
+        }
+        if (delayOptions == null) {
+            throw new ParameterException(spec.commandLine(),
+                "Missing required argument (specify one of these): (-d=<tokens> | --delay-ns=<nanos> | --delay-us=<micros>)");
+        }
+    }
+
+    /**
+     * Describe the delay as given, without calibrating it, e.g., to record it in a report
+     * @return the delay and its unit, or null if no delay is given
+     */
+    String describeDelay() {
+        if (delayOptions == null) {
+            return null;
+        }
+        if (delayOptions.tokens != null) {
+            return "%d (%s kernel)".formatted(delayOptions.tokens, kernel);
+        }
+        return delayOptions.nanos != null ? delayOptions.nanos + " ns" : delayOptions.micros + " us";
+    }
+
+    long resolveDelay() {
+        if ((!resolveGuard().isAlways() || !resolveJitter().isConstant()) && delayStyle != DelayStyle.RUNTIME) {
+            throw new IllegalArgumentException("Sampled and distributed delays (--fire-probability, --fire-every, "
+                + "--delay-distribution) need the RUNTIME delay style, which generates their code");
+        }
+        if (delayOptions.tokens != null) {
+            return delayOptions.tokens;
+        }
+        long nanos = delayOptions.nanos != null ? delayOptions.nanos : delayOptions.micros * 1000;
+        if (!kernel.isTimed()) {
+            throw new IllegalArgumentException("The %s kernel needs the delay in its own unit (-d)".formatted(kernel));
+        }
+        if (kernel == Kernel.PARK) {
+            return nanos;
+        }
+        Calibration calibration = new Calibrator(calibrationFile).getCalibration(recalibrate);
+        long tokens = calibration.toTokens(nanos);
+        LOGGER.info("Calibration: " + calibration);
+        LOGGER.info("Delay of %d ns translated into %d tokens".formatted(nanos, tokens));
+        return tokens;
+    }
+
+    Guard resolveGuard() {
+        return new Guard(fireProbability, fireEvery);
+    }
+
+    // The seed of the tables is the seed of the injector
+    Jitter resolveJitter() {
+        return distributionShape != null
+            ? new Jitter(delayDistribution, distributionShape, 0)
+            : Jitter.of(delayDistribution, 0);
+    }
+
+    /**
+     * Create an injector for a target library, configured with the backend and patch engine options
+     * @param target the target library base path
+     * @param delay the delay in number of tokens
+     * @return the injector
+     */
+    Injector createInjector(Path target, long delay) {
+        Injector injector = new Injector(target, delay);
+        injector.setBackend(backend);
+        injector.setDelayStyle(delayStyle);
+        injector.setKernel(kernel);
+        injector.setGuard(resolveGuard());
+        injector.setJitter(resolveJitter());
+        injector.setFileFilter(includes, excludes);
+        injector.setMaxFiles(maxFiles);
+        injector.setModelCache(modelCacheUnits, modelCacheMegabytes << 20);
+        injector.setBatch(batch);
+        if (compileCheck) {
+            injector.setCompilationCheck(new CompilationCheck(classpath));
+        }
+        if (patchEngine == PatchEngine.GIT) {
+            injector.setHunkFilter(new GitHunkFilter(target));
+        }
+        return injector;
+    }
+
+    /**
+     * Create the sampler of the candidate methods for the random modes
+     * @param injector the injector of the target library
+     * @return the sampler
+     */
+    WeightedSampler<String> createSampler(Injector injector) throws IOException {
+        if (mode == Mode.PROFILE_GUIDED) {
+            return createProfileSampler(injector.getMethodNames());
+        }
+        return injector.createSampler(selectionWeight);
+    }
+
+    private WeightedSampler<String> createProfileSampler(List<String> fqMethodNames) throws IOException {
+        if (profileFile == null) {
+            throw new IllegalArgumentException("Profile is required in profile-guided mode");
+        }
+        ProfileSampler sampler = new ProfileSampler(Profile.load(profileFile), fqMethodNames,
+            profileWeight, minPercentile, maxPercentile);
+        if (sampler.isEmpty()) {
+            throw new IllegalArgumentException("No method of the target library appears in the profile");
+        }
+        return sampler;
+    }
+
+    private Optional<Injection> injectInMethod(String fqMethodName, Supplier<Injection> injector) {
         // Inject the delay
         LOGGER.info("Injecting delay at %s".formatted(injectionMode));
         try {
-            injector.injectInMethod(method, injectionMode);
+            return Optional.of(injector.get());
         } catch (NoSuitableStatementsInMethod e) {
-            LOGGER.info("No suitable statements found in method %s".formatted(method.getFQMethodName()));
-            return false;
+            LOGGER.info("No suitable statements found in method %s".formatted(fqMethodName));
         } catch (RuntimeException e) {
             LOGGER.severe("Error while injecting the delay: " + e.getMessage());
-            return false;
         }
+        return Optional.empty();
+    }
+
+    private Optional<Injection> injectInMethod(Injector injector, Method method) {
+        return injectInMethod(method.getFQMethodName(), () -> injector.injectInMethod(method, injectionMode));
+    }
 
-        // Sometimes Spoon messes up the code in other parts when writing back the modifications.
-        // This seems to happen when the class contains some weird formatting.
-        // To avoid this, we resort to filter out all the diff hunks that do not contain our invocation.
+    /**
+     * Inject the delay in random methods, each in a different method
+     * @param injector the injector of the target library
+     * @param sampler the candidate methods
+     * @param injections the successful injections, filled as they are performed
+     */
+    void injectInRandomMethods(Injector injector, WeightedSampler<String> sampler, List<Injection> injections) {
         try {
-            new GitHunkFilter(targetLibraryPath)
-                .applyFilteredPatch(method.getClassFile(), "Blackhole.consumeCPU");
-        } catch (IOException | InterruptedException | RuntimeException e) {
-            LOGGER.severe("Error while filtering the patch: " + e.getMessage());
-            return false;
+            injectInRandomMethods(sampler, injector.getRandom(), fqMethodName -> {
+                Optional<Method> method = injector.findMethod(fqMethodName);
+                if (method.isEmpty()) {
+                    LOGGER.info("Method %s not found".formatted(fqMethodName));
+                    return Optional.empty();
+                }
+                LOGGER.info("Selected method %s in file %s".formatted(fqMethodName, method.get().getClassFile()));
+                return injectInMethod(injector, method.get());
+            }, injector::flush, injections);
+        } finally {
+            if (injector.getModelCache().getMisses() > 0) {
+                LOGGER.info("Model cache: " + injector.getModelCache());
+            }
         }
-
-        return true;
     }
 
-    private void injectInRandomMethods(int numInjections) {
-        List<Method> successfulInjections = new ArrayList<>();
-        List<Method> failedInjections = new ArrayList<>();
-        while (successfulInjections.size() < numInjections) {
-            // Randomly select a method
-            Method method = null;
+    private void injectInRandomMethods(WeightedSampler<String> sampler, Random random,
+                                       Function<String, Optional<Injection>> injectInMethod,
+                                       Supplier<Map<Injection, RuntimeException>> flush, List<Injection> injections) {
+        List<String> failedInjections = new ArrayList<>();
+        try {
             do {
-                method = selectRandomMethod();
-            } while (failedInjections.contains(method) || successfulInjections.contains(method));
-            LOGGER.info("Selected method %s in file %s".formatted(
-                method.getFQMethodName(), method.getClassFile()));
-
-            // Try to inject the delay
-            if (injectInMethod(method)) {
-                successfulInjections.add(method);
-            } else {
-                failedInjections.add(method);
-                LOGGER.info("Selecting anothet Java file and method...");
+                while (injections.size() < numInjections) {
+                    // Draw a method that was never selected before, until there are no candidates left
+                    if (sampler.isEmpty()) {
+                        throw new NoCandidateMethodsLeft("No candidate methods left: %d of %d injections performed, %d methods failed"
+                            .formatted(injections.size(), numInjections, failedInjections.size()));
+                    }
+                    String fqMethodName = sampler.draw(random);
+
+                    // Try to inject the delay
+                    Optional<Injection> injection = injectInMethod.apply(fqMethodName);
+                    if (injection.isPresent()) {
+                        injections.add(injection.get());
+                    } else {
+                        failedInjections.add(fqMethodName);
+                        LOGGER.info("Selecting another method...");
+                    }
+                }
+                // Batched injections are only written now: draw other methods for the ones that failed
+            } while (removeFailed(flush.get(), injections, failedInjections));
+        } finally {
+            // Write whatever is still pending, e.g., when there are no candidates left
+            removeFailed(flush.get(), injections, failedInjections);
+
+            // Print successful and failed injections
+            LOGGER.info("Successful injections:");
+            for (Injection injection : injections) {
+                LOGGER.info("  %s in %s:%d".formatted(injection.method(), injection.file(), injection.line()));
+            }
+            LOGGER.info("Failed injections:");
+            for (String fqMethodName : failedInjections) {
+                LOGGER.info("  " + fqMethodName);
             }
         }
+    }
 
-        // Print successful and failed injections
-        LOGGER.info("Successful injections:");
-        for (Method method : successfulInjections) {
-            LOGGER.info("  %s in %s".formatted(method.getFQMethodName(), method.getClassFile()));
+    private static boolean removeFailed(Map<Injection, RuntimeException> failures, List<Injection> injections,
+                                        List<String> failedInjections) {
+        for (Map.Entry<Injection, RuntimeException> failure : failures.entrySet()) {
+            LOGGER.severe("Error while writing the delay in %s: %s"
+                .formatted(failure.getKey().method(), failure.getValue().getMessage()));
+            injections.remove(failure.getKey());
+            failedInjections.add(failure.getKey().method());
         }
-        LOGGER.info("Failed injections:");
-        for (Method method : failedInjections) {
-            LOGGER.info("  %s in %s".formatted(method.getFQMethodName(), method.getClassFile()));
+        return !failures.isEmpty();
+    }
+
+    private int injectInBytecode(long delay) throws IOException {
+        if (outputPath == null) {
+            LOGGER.severe("Output jar or directory is required with the BYTECODE backend");
+            return 1;
+        }
+        if (delayStyle == DelayStyle.RUNTIME) {
+            LOGGER.severe("The RUNTIME delay style needs the generated runtime class, which only exists in source form");
+            return 1;
+        }
+        BytecodeInjector injector;
+        try {
+            injector = new BytecodeInjector(targetLibraryPath, new DelayWeaver(delay, kernel));
+        } catch (IllegalArgumentException e) {
+            LOGGER.severe(e.getMessage());
+            return 1;
+        }
+        if (randomSeed != 0) {
+            injector.setSeed(randomSeed);
         }
+        injector.load();
+
+        boolean atBegin = injectionMode == InjectionMode.BEGIN;
+        switch (mode) {
+            case TARGETED -> {
+                if (targetMethod == null) {
+                    LOGGER.severe("Target method is required in targeted mode");
+                    return 1;
+                }
+                if (!injector.contains(targetMethod)) {
+                    LOGGER.severe("Method not found: " + targetMethod);
+                    return 1;
+                }
+                LOGGER.info("Injecting delay in method: " + targetMethod);
+                if (injectInMethod(targetMethod, () -> injector.injectInMethod(targetMethod, atBegin)).isEmpty()) {
+                    return 1;
+                }
+            }
+            case RANDOM_METHOD, PROFILE_GUIDED -> {
+                try {
+                    WeightedSampler<String> sampler = mode == Mode.PROFILE_GUIDED
+                        ? createProfileSampler(injector.getMethodNames())
+                        : new WeightedSampler<>(injector.getMethodWeights(selectionWeight));
+                    LOGGER.info("Injecting delay in %d random methods".formatted(numInjections));
+                    injectInRandomMethods(sampler, injector.getRandom(), fqMethodName -> {
+                        LOGGER.info("Selected method " + fqMethodName);
+                        return injectInMethod(fqMethodName, () -> injector.injectInMethod(fqMethodName, atBegin));
+                    }, Map::of, new ArrayList<>());
+                } catch (IllegalArgumentException | NoCandidateMethodsLeft e) {
+                    LOGGER.severe(e.getMessage());
+                    return 1;
+                }
+            }
+        }
+
+        injector.write(outputPath);
+        return 0;
     }
 
     @Override
     public Integer call() throws Exception {
+        requireInjectionOptions();
+
         // Check if the path is valid
         if (!targetLibraryPath.toFile().exists()) {
             LOGGER.severe("Invalid path: " + targetLibraryPath);
             return 1;
         }
 
+        long delay;
+        try {
+            delay = resolveDelay();
+        } catch (IllegalArgumentException e) {
+            LOGGER.severe(e.getMessage());
+            return 1;
+        }
+
+        if (backend == Backend.BYTECODE) {
+            return injectInBytecode(delay);
+        }
+
         LOGGER.info("Analyzing target library: " + targetLibraryPath);
-        injector = new Injector(targetLibraryPath, delay);
+        Injector injector = createInjector(targetLibraryPath, delay);
         if (randomSeed != 0) {
             injector.setSeed(randomSeed);
         }
-
-        if (mode == Mode.TARGETED && targetMethod == null) {
-            LOGGER.severe("Target method is required in targeted mode");
-            return 1;
+        if (sharedModel) {
+            injector.useSharedModel();
+        } else if (cacheDir != null) {
+            injector.useSiteCache(cacheDir);
         }
 
         switch (mode) {
             case TARGETED -> {
+                if (targetMethod == null) {
+                    LOGGER.severe("Target method is required in targeted mode");
+                    return 1;
+                }
                 LOGGER.info("Injecting delay in method: " + targetMethod);
                 Optional<Method> method = injector.findMethod(targetMethod);
                 if (method.isEmpty()) {
                     LOGGER.severe("Method not found: " + targetMethod);
                     return 1;
                 }
-                injectInMethod(method.get());
+                injectInMethod(injector, method.get());
+                removeFailed(injector.flush(), new ArrayList<>(), new ArrayList<>());
             }
-            case RANDOM_METHOD -> {
+            case RANDOM_METHOD, PROFILE_GUIDED -> {
+                WeightedSampler<String> sampler;
+                try {
+                    sampler = createSampler(injector);
+                } catch (IllegalArgumentException e) {
+                    LOGGER.severe(e.getMessage());
+                    return 1;
+                }
                 LOGGER.info("Injecting delay in %d random methods".formatted(numInjections));
-                injectInRandomMethods(numInjections);
+                try {
+                    injectInRandomMethods(injector, sampler, new ArrayList<>());
+                } catch (NoCandidateMethodsLeft e) {
+                    LOGGER.severe(e.getMessage());
+                    return 1;
+                }
             }
         }
 
@@ -1,72 +1,415 @@
 package it.univaq.disim.spencer.injectblackhole;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import it.univaq.disim.spencer.injectblackhole.analysis.CodeBase;
+import it.univaq.disim.spencer.injectblackhole.analysis.JavaFileIndex;
 import it.univaq.disim.spencer.injectblackhole.analysis.Method;
+import it.univaq.disim.spencer.injectblackhole.analysis.MethodIndex;
+import it.univaq.disim.spencer.injectblackhole.analysis.ModelCache;
+import it.univaq.disim.spencer.injectblackhole.analysis.SiteCache;
+import it.univaq.disim.spencer.injectblackhole.analysis.SourceRoots;
 import it.univaq.disim.spencer.injectblackhole.exception.NoSuitableStatementsInMethod;
+import it.univaq.disim.spencer.injectblackhole.injection.CompilationCheck;
 import it.univaq.disim.spencer.injectblackhole.injection.Delay;
-import it.univaq.disim.spencer.injectblackhole.injection.GitHunkFilter;
+import it.univaq.disim.spencer.injectblackhole.injection.DelayRuntime;
+import it.univaq.disim.spencer.injectblackhole.injection.DelayStyle;
+import it.univaq.disim.spencer.injectblackhole.injection.Guard;
+import it.univaq.disim.spencer.injectblackhole.injection.HunkFilter;
+import it.univaq.disim.spencer.injectblackhole.injection.Injection;
+import it.univaq.disim.spencer.injectblackhole.injection.Jitter;
+import it.univaq.disim.spencer.injectblackhole.injection.Kernel;
+import it.univaq.disim.spencer.injectblackhole.injection.SnapshotHunkFilter;
+import it.univaq.disim.spencer.injectblackhole.injection.SourceSplicer;
+import it.univaq.disim.spencer.injectblackhole.selection.SelectionWeight;
+import it.univaq.disim.spencer.injectblackhole.selection.WeightedSampler;
 import spoon.SpoonException;
 import spoon.reflect.code.CtInvocation;
 import spoon.reflect.code.CtStatement;
+import spoon.reflect.declaration.CtElement;
 import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.CtPackage;
 
 public class Injector {
 
     private static final Logger LOGGER = Logger.getLogger(Injector.class.getName());
-    private static Random random = new Random();
+    public static final int DEFAULT_MODEL_CACHE_UNITS = 64;
+    // Each injector has its own stream, so that parallel injectors stay reproducible
+    private Random random = new Random();
+    // Also the seed of the tables of delays of the RUNTIME style
+    private long seed;
     private Path targetLibraryPath;
+    private JavaFileIndex fileIndex;
+    private SourceRoots sourceRoots;
+    // Files of the top-level classes, by fully qualified name
+    private Map<String, Path> classFiles;
+    private int maxFiles;
     private Delay delay;
+    private MethodIndex methodIndex;
+    private SiteCache siteCache;
+    private HunkFilter hunkFilter;
+    private Backend backend = Backend.SPOON;
+    private SourceSplicer splicer = new SourceSplicer();
+    // Models of single files, for the lookups that are not served by the shared model
+    private ModelCache modelCache = new ModelCache(DEFAULT_MODEL_CACHE_UNITS, 0, this::release);
+    // Runtime classes of the RUNTIME delay style, by source root
+    private Map<Path, DelayRuntime> runtimes = new ConcurrentHashMap<>();
+    // Injections in the models that are not written yet, in batch mode
+    private boolean batch;
+    private List<Pending> pending = new ArrayList<>();
+    // Compiles each modified compilation unit in memory before it is written, if set
+    private CompilationCheck compilationCheck;
+
+    private record Inserted(CtElement anchor, Runnable undo) {
+    }
+
+    private record Pending(Method method, Injection injection, Runnable undo) {
+    }
 
     public Injector(Path targetLibraryPath, long delay) {
         this.targetLibraryPath = targetLibraryPath;
+        this.fileIndex = new JavaFileIndex(targetLibraryPath);
         this.delay = new Delay(delay);
+        this.hunkFilter = new SnapshotHunkFilter();
     }
 
-    public void setSeed(int seed) {
+    public void setSeed(long seed) {
+        this.seed = seed;
         random.setSeed(seed);
     }
 
+    public HunkFilter getHunkFilter() {
+        return hunkFilter;
+    }
+
+    public void setHunkFilter(HunkFilter hunkFilter) {
+        this.hunkFilter = hunkFilter;
+    }
+
+    public void setBackend(Backend backend) {
+        this.backend = backend;
+    }
+
+    public void setDelayStyle(DelayStyle style) {
+        this.delay = new Delay(delay.getDelay(), style, delay.getKernel(), delay.getGuard(), delay.getJitter());
+    }
+
+    public void setKernel(Kernel kernel) {
+        this.delay = new Delay(delay.getDelay(), delay.getStyle(), kernel, delay.getGuard(), delay.getJitter());
+    }
+
+    /**
+     * Fire the delays only on some calls; the guard is generated in the runtime class,
+     * so it needs the RUNTIME delay style
+     * @param guard when the delays fire
+     */
+    public void setGuard(Guard guard) {
+        this.delay = new Delay(delay.getDelay(), delay.getStyle(), delay.getKernel(), guard, delay.getJitter());
+    }
+
+    /**
+     * Vary the delays from call to call; the tables of delays are drawn by the runtime class,
+     * from the seed of the injector, so it needs the RUNTIME delay style
+     * @param jitter the distribution of the delays
+     */
+    public void setJitter(Jitter jitter) {
+        this.delay = new Delay(delay.getDelay(), delay.getStyle(), delay.getKernel(), delay.getGuard(), jitter);
+    }
+
+    /**
+     * Only inject in the models, and write all the injections at once with flush():
+     * one save per file and one filtered patch for all the files. The models with pending injections
+     * stay in memory until the flush, even beyond the bounds of the model cache
+     * @param batch whether to batch the injections
+     */
+    public void setBatch(boolean batch) {
+        this.batch = batch;
+    }
+
+    public boolean isBatch() {
+        return batch;
+    }
+
+    /**
+     * Compile the modified compilation unit in memory before writing it, and only keep the
+     * positions where the delay adds no error (e.g., not after a return)
+     * @param compilationCheck the compilation check, or null for none
+     */
+    public void setCompilationCheck(CompilationCheck compilationCheck) {
+        this.compilationCheck = compilationCheck;
+    }
+
+    /**
+     * Only consider the Java files matching the globs (relative to the target library),
+     * besides the default exclusions of tests, build outputs and generated sources
+     * @param includes globs of the files to consider (all if empty)
+     * @param excludes globs of the files to skip
+     */
+    public void setFileFilter(List<String> includes, List<String> excludes) {
+        this.fileIndex = new JavaFileIndex(targetLibraryPath, includes, excludes);
+        this.classFiles = null;
+    }
+
+    /**
+     * Only parse a uniform random sample of the Java files when building the shared model,
+     * for trees too big to be parsed at once
+     * @param maxFiles the number of files, or 0 for all of them
+     */
+    public void setMaxFiles(int maxFiles) {
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Bound the models of single files kept in memory between lookups
+     * @param maxUnits the maximum number of files (0 for no limit)
+     * @param maxBytes the estimated heap budget (0 for no limit)
+     */
+    public void setModelCache(int maxUnits, long maxBytes) {
+        this.modelCache = new ModelCache(maxUnits, maxBytes, this::release);
+    }
+
+    public ModelCache getModelCache() {
+        return modelCache;
+    }
+
+    private void release(CodeBase codeBase) {
+        splicer.forget(codeBase.getLauncher().getFactory());
+    }
+
+    /**
+     * Parse the target library once and serve every selection and injection
+     * from the same model, instead of building a model per lookup
+     */
+    public void useSharedModel() {
+        List<Path> files;
+        if (maxFiles > 0) {
+            files = fileIndex.sample(maxFiles, random);
+            LOGGER.info("Parsing a sample of %d Java files".formatted(files.size()));
+        } else {
+            files = fileIndex.getFiles();
+        }
+        // One model per module, built in parallel
+        methodIndex = MethodIndex.build(getSourceRoots().groupByRoot(files));
+    }
+
+    /**
+     * Select methods from a persistent index, parsing only the files that changed
+     * since the previous run and, later, only the files that host a selected method
+     * @param cacheDir the directory holding the index
+     */
+    public void useSiteCache(Path cacheDir) {
+        siteCache = new SiteCache(targetLibraryPath, cacheDir);
+        siteCache.refresh(fileIndex.getStamps(), getSourceRoots());
+    }
+
+    public SiteCache getSiteCache() {
+        return siteCache;
+    }
+
+    /**
+     * Select methods from an index that is already up to date, e.g., one shared by several injectors
+     * @param siteCache the index of the target library
+     */
+    public void useSiteCache(SiteCache siteCache) {
+        this.siteCache = siteCache;
+    }
+
+    /**
+     * Get the names of all the methods that can host an injection.
+     * Without a site cache, this builds the shared model.
+     * @return List of fully qualified method names
+     */
+    public List<String> getMethodNames() {
+        if (siteCache != null) {
+            return siteCache.getMethodNames();
+        }
+        if (methodIndex == null) {
+            useSharedModel();
+        }
+        return methodIndex.getMethodNames();
+    }
+
+    /**
+     * Build a finite sampler over all the methods that can host an injection.
+     * Without a site cache, this builds the shared model.
+     * @param weight how likely each method is to be selected
+     * @return the sampler of fully qualified method names
+     */
+    public WeightedSampler<String> createSampler(SelectionWeight weight) {
+        if (siteCache != null) {
+            return new WeightedSampler<>(siteCache.getMethodWeights(weight));
+        }
+        if (methodIndex == null) {
+            useSharedModel();
+        }
+        return new WeightedSampler<>(methodIndex.getMethodWeights(weight));
+    }
+
+    public Random getRandom() {
+        return random;
+    }
+
     public List<Path> getJavaFiles() {
-        try {
-            return Files.walk(targetLibraryPath)
-                        .filter(p -> p.toString().endsWith(".java"))
-                        .collect(Collectors.toList());
-        } catch (IOException e) {
-            throw new RuntimeException("Error retrieving Java files", e);
+        if (methodIndex != null) {
+            return methodIndex.getFiles();
+        }
+        if (siteCache != null) {
+            return siteCache.getFiles();
         }
+        return fileIndex.getFiles();
     }
 
     public Optional<Method> findMethod(String fqMethodName) {
-        Method target = new Method(fqMethodName);
+        if (methodIndex != null) {
+            return methodIndex.find(fqMethodName);
+        }
+        if (siteCache != null) {
+            return siteCache.findFile(fqMethodName)
+                .flatMap(javaFile -> loadMethod(javaFile, fqMethodName));
+        }
 
-        // Convert package name to path
+        Method target = new Method(fqMethodName);
         if (target.getPackageName() == null) {
             return Optional.empty();
         }
-        Path packagePath = targetLibraryPath.resolve(target.getPackageName().replace('.', '/'));
-        if (!Files.exists(packagePath)) {
+
+        // Most classes are in the file named after them, in any module
+        Path classFile = getClassFiles().get(target.getFQClassName());
+        if (classFile != null) {
+            Optional<Method> method = loadMethod(classFile, fqMethodName);
+            if (method.isPresent()) {
+                return method;
+            }
+        }
+
+        // Otherwise, build the Spoon model of the package, in every source root
+        for (Path sourceRoot : getSourceRoots().getRoots()) {
+            Path packagePath = sourceRoot.resolve(target.getPackageName().replace('.', '/'));
+            if (!Files.isDirectory(packagePath)) {
+                continue;
+            }
+            CodeBase packageModel = new CodeBase(packagePath);
+            packageModel.load();
+            for (CtMethod<?> m : packageModel.getMethods()) {
+                Method thisMethod = new Method(m);
+                if (thisMethod.equals(target)) {
+                    thisMethod.setCodeBase(packageModel);
+                    return Optional.of(thisMethod);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Locate the file of a method, without parsing it when possible
+     * @param fqMethodName the fully qualified method name
+     * @return the file, if found
+     */
+    public Optional<Path> findFile(String fqMethodName) {
+        if (methodIndex != null) {
+            return methodIndex.find(fqMethodName).map(Method::getClassFile);
+        }
+        if (siteCache != null) {
+            return siteCache.findFile(fqMethodName);
+        }
+        Method target = new Method(fqMethodName);
+        if (target.getPackageName() == null) {
             return Optional.empty();
         }
+        // The class can be nested in the top-level class of the file
+        String className = target.getFQClassName();
+        while (className.length() > target.getPackageName().length()) {
+            Path classFile = getClassFiles().get(className);
+            if (classFile != null) {
+                return Optional.of(classFile);
+            }
+            className = className.substring(0, Math.max(0, className.lastIndexOf('.')));
+        }
+        return Optional.empty();
+    }
 
-        // Build the Spoon model for the entire library
-        CodeBase fileModel = new CodeBase(packagePath);
-        fileModel.load();
+    /**
+     * Get the candidate injection sites of a file: the methods that can host an injection, with the lines of
+     * the statements that a delay can precede (at a random position). Served by the site cache or the shared
+     * model when available, otherwise by the model of the file.
+     * @param javaFile the Java file
+     * @return the lines of the candidate statements, by fully qualified method name
+     */
+    public Map<String, List<Integer>> getSites(Path javaFile) {
+        Map<String, List<Integer>> sites = new LinkedHashMap<>();
+        if (siteCache != null) {
+            for (SiteCache.MethodEntry method : siteCache.getMethods(javaFile)) {
+                sites.put(method.fqName(), method.statementLines());
+            }
+            return sites;
+        }
+        List<Method> methods;
+        if (methodIndex != null) {
+            methods = methodIndex.getMethods(javaFile);
+        } else {
+            CodeBase fileModel = modelCache.get(javaFile);
+            methods = fileModel.getInjectableMethods().stream().map(Method::new).toList();
+        }
+        for (Method method : methods) {
+            sites.put(method.getFQMethodName(), method.getTopLevelStatements().stream()
+                .map(statement -> statement.getPosition().getLine())
+                .toList());
+        }
+        return sites;
+    }
+
+    /**
+     * Forget a file restored behind the back of the injector, e.g., by a long-running session:
+     * its cached model, its snapshot, and the runtime sites of its injected methods
+     * @param javaFile the Java file
+     * @param fqMethodNames the injected methods of the file
+     */
+    public void forget(Path javaFile, Collection<String> fqMethodNames) {
+        modelCache.invalidate(javaFile);
+        hunkFilter.forget(javaFile);
+        for (DelayRuntime runtime : runtimes.values()) {
+            runtime.unregisterMethods(fqMethodNames);
+        }
+    }
+
+    private synchronized SourceRoots getSourceRoots() {
+        if (sourceRoots == null) {
+            sourceRoots = SourceRoots.discover(targetLibraryPath);
+        }
+        return sourceRoots;
+    }
 
-        // Find the method by name
-        List<CtMethod<?>> methods = fileModel.getMethods();
-        for (CtMethod<?> m : methods) {
+    private synchronized Map<String, Path> getClassFiles() {
+        if (classFiles == null) {
+            classFiles = getSourceRoots().getClassFiles(fileIndex.getFiles());
+        }
+        return classFiles;
+    }
+
+    private Optional<Method> loadMethod(Path javaFile, String fqMethodName) {
+        // The Spoon model of the selected file only, reused while it is recently used
+        CodeBase fileModel = modelCache.get(javaFile);
+
+        for (CtMethod<?> m : fileModel.getMethods()) {
             Method thisMethod = new Method(m);
-            if (thisMethod.equals(target)) {
+            if (thisMethod.getFQMethodName().equals(fqMethodName)) {
                 thisMethod.setCodeBase(fileModel);
                 return Optional.of(thisMethod);
             }
@@ -74,98 +417,395 @@ public class Injector {
         return Optional.empty();
     }
 
-    public Optional<Method> getRandomMethod(Path javaFile) {
-        // Build the Spoon model for the entire library
-        CodeBase fileModel = new CodeBase(javaFile);
-        fileModel.load();
+    private CtStatement injectBeforeRandomStatement(Method method, CtInvocation<Object> invocation) {
+        // Get all the statements at any depth, including within blocks like if and for
+        List<CtStatement> statements = method.getTopLevelStatements();
+        if (statements.isEmpty()) {
+            throw new NoSuitableStatementsInMethod("No suitable statements in method " + method.getFQMethodName());
+        }
 
-        // Randomly select a method to inject the delay
-        List<CtMethod<?>> methods = fileModel.getMethods().stream()
-            .filter(method -> !method.isAbstract()) // Exclude abstract methods
-            .collect(Collectors.toList());
-        if (methods.isEmpty()) {
-            return Optional.empty();
+        // Sometimes Spoon will not be able to print the invocation at a given position,
+        // so we validate the positions in memory, in random order, and keep the first valid one.
+        // This is a uniform draw from the valid positions, and nothing is written until we find it.
+        // The invocations of the batch are already in the model, but not on disk
+        int injected = countInjected(method.getClassFile()) + (int) pending.stream()
+            .filter(other -> isSameFile(other.method(), method))
+            .count();
+        String original = printForCheck(method);
+        List<Integer> positions = IntStream.range(0, statements.size()).boxed().collect(Collectors.toList());
+        Collections.shuffle(positions, random);
+        for (int position : positions) {
+            if (isValidPosition(method, statements.get(position), invocation, injected, original)) {
+                delay.injectBeforeStatement(statements.get(position), invocation);
+                return statements.get(position);
+            }
         }
-        Method randomMethod = new Method(methods.get(random.nextInt(methods.size())));
-        randomMethod.setCodeBase(fileModel);
-        return Optional.of(randomMethod);
+
+        // If we reach this point, we were not able to inject the invocation
+        throw new RuntimeException("Failed to inject the invocation in method " + method.getFQMethodName());
     }
 
-    public Path getRandomJavaFile() {
-        // Randomly select a Java file
-        List<Path> javaFiles = getJavaFiles();
-        return javaFiles.get(random.nextInt(javaFiles.size()));
+    private boolean isValidPosition(Method method, CtStatement statement, CtInvocation<Object> invocation, int injected,
+                                    String original) {
+        delay.injectBeforeStatement(statement, invocation);
+        try {
+            // The printed class must contain one more invocation than the file on disk (and the batch)
+            String printed = method.getCodeBase().print(method.getClassFile());
+            return countOccurrences(printed, delay.getKeyword()) > injected && compiles(method, original, printed);
+        } catch (SpoonException e) {
+            LOGGER.fine("Cannot print the invocation at %s: %s".formatted(statement.getPosition(), e.getMessage()));
+            return false;
+        } finally {
+            invocation.delete();
+        }
     }
 
-    private void injectBeforeRandomStatement(Method method, CtInvocation<Object> invocation) {
-        // Get all the statements at any depth, including within blocks like if and for
-        List<CtStatement> statements = method.getTopLevelStatements();
+    // The source of the compilation unit of a method, as the backend would write it (null without a compilation check)
+    private String printForCheck(Method method) {
+        if (compilationCheck == null) {
+            return null;
+        }
+        return backend == Backend.SPLICE ? splicer.print(method.getMethod()) : method.getCodeBase().print(method.getClassFile());
+    }
+
+    // Whether the source with the delay compiles as well as the original source (always without a compilation check)
+    private boolean compiles(Method method, String original, String modified) {
+        if (compilationCheck == null) {
+            return true;
+        }
+        List<String> errors = compilationCheck.newErrors(method.getClassFile(), original, modified);
+        if (!errors.isEmpty()) {
+            LOGGER.fine("The delay does not compile in %s: %s".formatted(method.getFQMethodName(), errors));
+        }
+        return errors.isEmpty();
+    }
+
+    private int countInjected(Path javaFile) {
+        try {
+            // The keyword is ASCII, any byte-transparent charset will do
+            return countOccurrences(Files.readString(javaFile, StandardCharsets.ISO_8859_1), delay.getKeyword());
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading " + javaFile, e);
+        }
+    }
+
+    private static boolean isSameFile(Method method, Method other) {
+        return method.getClassFile().toAbsolutePath().normalize().equals(other.getClassFile().toAbsolutePath().normalize());
+    }
+
+    private static int countOccurrences(String text, String keyword) {
+        int count = 0;
+        for (int i = text.indexOf(keyword); i >= 0; i = text.indexOf(keyword, i + keyword.length())) {
+            count++;
+        }
+        return count;
+    }
+
+    private CtStatement spliceBeforeRandomStatement(Method method, String code) {
+        // Only the positions where the statement can be spliced are candidates, so a single draw is enough
+        List<CtStatement> statements = method.getTopLevelStatements().stream()
+            .filter(splicer::canInsertBefore)
+            .collect(Collectors.toList());
         if (statements.isEmpty()) {
             throw new NoSuitableStatementsInMethod("No suitable statements in method " + method.getFQMethodName());
         }
+        CtStatement statement = statements.get(random.nextInt(statements.size()));
+        if (compilationCheck == null) {
+            splicer.insertBefore(statement, code);
+            return statement;
+        }
 
-        // Randomly select a position
-        // Sometimes Spoon will not be able to inject the invocation at the selected position,
-        // so we keep track of the failed positions and retry until we find a good one
-        List<Integer> failedPositions = new ArrayList<>();
-        int position;
-        GitHunkFilter git = new GitHunkFilter(targetLibraryPath);
-        do {
-            position = random.nextInt(statements.size());
-            if (failedPositions.contains(position)) {
-                continue;
+        // Try the drawn position first, then the others in random order, until one compiles
+        String original = printForCheck(method);
+        List<CtStatement> candidates = new ArrayList<>(statements);
+        candidates.remove(statement);
+        Collections.shuffle(candidates, random);
+        candidates.add(0, statement);
+        for (CtStatement candidate : candidates) {
+            splicer.insertBefore(candidate, code);
+            if (compiles(method, original, printForCheck(method))) {
+                return candidate;
             }
+            splicer.undoLast(method.getMethod());
+        }
+        throw new RuntimeException("The delay does not compile at any position of method " + method.getFQMethodName());
+    }
 
-            // Try the injection
-            delay.injectBeforeStatement(statements.get(position), invocation);
+    /**
+     * Inject the delay in a method
+     * @param method the method
+     * @param mode at the beginning or before a random statement
+     * @return where the delay was injected
+     */
+    public Injection injectInMethod(Method method, InjectionMode mode) {
+        // The model must not be evicted, with the insertions of the splicer, before they are written:
+        // after this injection, or after the flush of the batch
+        CodeBase codeBase = method.getCodeBase();
+        modelCache.pin(codeBase);
+        Injection injection;
+        try {
+            injection = inject(method, mode);
+        } catch (RuntimeException e) {
+            modelCache.unpin(codeBase);
+            throw e;
+        }
+        if (!batch) {
+            modelCache.unpin(codeBase);
+        }
+        return injection;
+    }
 
-            try {
-                // Save the modified class file
-                method.getCodeBase().save();
-            } catch (SpoonException e) {
-                LOGGER.warning("Error saving the modified class file: " + e.getMessage());
-                failedPositions.add(position);
-                try {
-                    git.discardChanges(method.getClassFile());
-                } catch (IOException | InterruptedException e1) {
-                    LOGGER.severe("Error discarding changes: " + e1.getMessage());
-                    e1.printStackTrace();
+    private Injection inject(Method method, InjectionMode mode) {
+        // A file is saved from one model: its pending injections would be lost in another one
+        if (batch && pending.stream().anyMatch(other -> isSameFile(other.method(), method)
+                                                         && other.method().getCodeBase() != method.getCodeBase())) {
+            throw new RuntimeException("The file of method %s has pending injections in another model"
+                .formatted(method.getFQMethodName()));
+        }
+
+        // Switchable delays are sites of the runtime class, registered before the injection,
+        // and most kernels are implemented by the runtime class
+        DelayRuntime runtime = null;
+        int site = -1;
+        if (delay.getStyle() == DelayStyle.RUNTIME) {
+            runtime = getRuntime(method);
+            site = runtime.register(method.getFQMethodName(), delay.getDelay(), delay.getKernel(), delay.getGuard(),
+                                    delay.getJitter().withSeed(seed));
+        } else if (delay.getKernel().needsRuntime()) {
+            getRuntime(method).generate();
+        }
+
+        Inserted inserted;
+        try {
+            inserted = switch (backend) {
+                case SPOON -> injectWithSpoon(method, mode, site);
+                case SPLICE -> injectWithSplice(method, mode, site);
+                case BYTECODE -> throw new IllegalStateException("Bytecode is injected by the BytecodeInjector");
+            };
+        } catch (RuntimeException e) {
+            if (runtime != null) {
+                runtime.unregister(site);
+            }
+            throw e;
+        }
+        Injection injection = new Injection(method.getFQMethodName(), method.getClassFile().toString(),
+                                            inserted.anchor().getPosition().getLine(), delay.getDelay());
+        if (batch) {
+            DelayRuntime siteRuntime = runtime;
+            int siteId = site;
+            pending.add(new Pending(method, injection, () -> {
+                inserted.undo().run();
+                if (siteRuntime != null) {
+                    siteRuntime.unregister(siteId);
                 }
-                continue;
+            }));
+        }
+        return injection;
+    }
+
+    /**
+     * Write the injections of the batch: one save per file, then one filtered patch for all the files.
+     * The runtime classes are written here too, once, also when the injections are not batched
+     * @return the injections that failed, which are undone, with their error
+     */
+    public Map<Injection, RuntimeException> flush() {
+        Map<Injection, RuntimeException> failures = new LinkedHashMap<>();
+        if (pending.isEmpty()) {
+            saveRuntimes();
+            return failures;
+        }
+        List<Pending> flushed = pending;
+        pending = new ArrayList<>();
+        try {
+            return write(flushed, failures);
+        } finally {
+            // Written or undone: the models can be evicted again
+            for (Pending injection : flushed) {
+                modelCache.unpin(injection.method().getCodeBase());
             }
+        }
+    }
+
+    private Map<Injection, RuntimeException> write(List<Pending> flushed, Map<Injection, RuntimeException> failures) {
+        Map<Path, List<Pending>> byFile = flushed.stream().collect(Collectors.groupingBy(
+            injection -> injection.method().getClassFile().toAbsolutePath().normalize(), LinkedHashMap::new, Collectors.toList()));
+        int injections = flushed.size();
 
+        // Save each file once, with all its injections. The content before the save holds the injections
+        // of the previous flushes, and is restored if this flush fails, rather than the pristine file
+        Map<Path, Integer> expected = new HashMap<>();
+        Map<Path, byte[]> previous = new HashMap<>();
+        for (Map.Entry<Path, List<Pending>> file : byFile.entrySet()) {
+            Method method = file.getValue().get(0).method();
             try {
-                // Check if the injection was successful by checking if the invocation is present in the diff
-                if (git.gitDiffFile(method.getClassFile()).isEmpty()) {
-                    failedPositions.add(position);
-                } else {
-                    return;
+                previous.put(file.getKey(), readBytes(file.getKey()));
+                expected.put(file.getKey(), countInjected(file.getKey()) + file.getValue().size());
+                switch (backend) {
+                    case SPOON -> method.getCodeBase().save(file.getKey());
+                    case SPLICE -> splicer.save(method.getMethod());
+                    case BYTECODE -> throw new IllegalStateException("Bytecode is injected by the BytecodeInjector");
                 }
+            } catch (RuntimeException e) {
+                undo(file.getValue(), e, failures);
+                expected.remove(file.getKey());
+            }
+        }
+
+        // Filter the modifications of all the files at once
+        if (backend == Backend.SPOON && !expected.isEmpty()) {
+            Map<Path, RuntimeException> patchFailures;
+            try {
+                patchFailures = hunkFilter.applyFilteredPatches(new ArrayList<>(expected.keySet()), delay.getKeyword());
             } catch (IOException | InterruptedException e) {
-                LOGGER.warning("Error during git diff check: " + e.getMessage());
-                failedPositions.add(position);
+                throw new RuntimeException("Error while filtering the patches: " + e.getMessage(), e);
+            }
+            for (Map.Entry<Path, RuntimeException> failure : patchFailures.entrySet()) {
+                restore(failure.getKey(), previous.get(failure.getKey()));
+                undo(byFile.get(failure.getKey()), new RuntimeException(
+                    "Error while filtering the patch: " + failure.getValue().getMessage(), failure.getValue()), failures);
+                expected.remove(failure.getKey());
             }
-        } while (failedPositions.size() < statements.size());
+        }
 
-        // If we reach this point, we were not able to inject the invocation
-        throw new RuntimeException("Failed to inject the invocation in method " + method.getFQMethodName());
+        // Every injection of a file must be in the saved file, and survive the filter, otherwise the file is restored
+        for (Map.Entry<Path, Integer> file : expected.entrySet()) {
+            if (countInjected(file.getKey()) != file.getValue()) {
+                restore(file.getKey(), previous.get(file.getKey()));
+                undo(byFile.get(file.getKey()), new RuntimeException("Some injections were lost in " + file.getKey()), failures);
+            }
+        }
+        saveRuntimes();
+        LOGGER.info("Batch: %d injections written in %d files, %d failed".formatted(injections, byFile.size(), failures.size()));
+        return failures;
+    }
+
+    private void saveRuntimes() {
+        for (DelayRuntime runtime : runtimes.values()) {
+            runtime.save();
+        }
+    }
+
+    private static byte[] readBytes(Path javaFile) {
+        try {
+            return Files.readAllBytes(javaFile);
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading " + javaFile, e);
+        }
     }
 
-    public void injectInMethod(Method method, InjectionMode mode) {
+    private void restore(Path javaFile, byte[] content) {
+        try {
+            Files.write(javaFile, content);
+        } catch (IOException e) {
+            throw new RuntimeException("Error restoring " + javaFile, e);
+        }
+        // The snapshot of the hunk filter may be older, e.g., the pristine file of the git engine
+        hunkFilter.forget(javaFile);
+    }
+
+    private static void undo(List<Pending> injections, RuntimeException error, Map<Injection, RuntimeException> failures) {
+        // Latest first, so that the splicer drops its insertions in order
+        for (int i = injections.size() - 1; i >= 0; i--) {
+            injections.get(i).undo().run();
+            failures.put(injections.get(i).injection(), error);
+        }
+    }
+
+    private DelayRuntime getRuntime(Method method) {
+        // The runtime class goes in the source root of the method, so that it is compiled with it
+        Path sourceRoot = method.getClassFile().toAbsolutePath().normalize().getParent();
+        CtPackage ctPackage = method.getMethod().getDeclaringType().getPackage();
+        if (ctPackage != null && !ctPackage.isUnnamedPackage()) {
+            for (int i = 0; i < ctPackage.getQualifiedName().split("\\.").length; i++) {
+                sourceRoot = sourceRoot.getParent();
+            }
+        }
+        return runtimes.computeIfAbsent(sourceRoot, DelayRuntime::new);
+    }
+
+    private Inserted injectWithSplice(Method method, InjectionMode mode, int site) {
+        String code = delay.createSource(site);
+
+        // Splice the statement, depending on the mode
+        CtElement anchor = switch (mode) {
+            case BEGIN -> {
+                String original = printForCheck(method);
+                splicer.insertAtBegin(method.getMethod(), code);
+                if (!compiles(method, original, printForCheck(method))) {
+                    splicer.undoLast(method.getMethod());
+                    throw new RuntimeException("The delay does not compile at the beginning of method " + method.getFQMethodName());
+                }
+                yield method.getMethod().getBody();
+            }
+            case RANDOM_POSITION -> spliceBeforeRandomStatement(method, code);
+        };
+        if (batch) {
+            return new Inserted(anchor, () -> splicer.undoLast(method.getMethod()));
+        }
+
+        // Write the original source with our statement
+        try {
+            splicer.save(method.getMethod());
+        } catch (RuntimeException e) {
+            splicer.undoLast(method.getMethod());
+            throw e;
+        }
+        return new Inserted(anchor, () -> splicer.undoLast(method.getMethod()));
+    }
+
+    private Inserted injectWithSpoon(Method method, InjectionMode mode, int site) {
+        // Remember the original content, to filter the modifications afterwards
+        try {
+            hunkFilter.snapshot(method.getClassFile());
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading " + method.getClassFile(), e);
+        }
+
         // Create the Blackhole invocation
-        CtInvocation<Object> invocation = delay.createBlackholeConsume(method.getCodeBase().getLauncher().getFactory());
+        CtInvocation<Object> invocation = delay.createInvocation(method.getCodeBase().getLauncher().getFactory(), site);
 
         // Inject the invocation, depending on the mode
-        switch (mode) {
-            case BEGIN:
+        CtElement anchor = switch (mode) {
+            case BEGIN -> {
+                String original = printForCheck(method);
                 delay.injectAtBegin(method.getMethod(), invocation);
-                break;
-            case RANDOM_POSITION:
-                injectBeforeRandomStatement(method, invocation);
-                break;
+                boolean compiles;
+                try {
+                    compiles = compiles(method, original, printForCheck(method));
+                } catch (RuntimeException e) {
+                    invocation.delete();
+                    throw e;
+                }
+                if (!compiles) {
+                    invocation.delete();
+                    throw new RuntimeException("The delay does not compile at the beginning of method " + method.getFQMethodName());
+                }
+                yield method.getMethod().getBody();
+            }
+            case RANDOM_POSITION -> injectBeforeRandomStatement(method, invocation);
+        };
+        if (batch) {
+            return new Inserted(anchor, invocation::delete);
         }
 
         // Save the modified class file
-        method.getCodeBase().save();
+        try {
+            method.getCodeBase().save(method.getClassFile());
+        } catch (RuntimeException e) {
+            invocation.delete();
+            throw e;
+        }
+
+        // Sometimes Spoon messes up the code in other parts when writing back the modifications.
+        // This seems to happen when the class contains some weird formatting.
+        // To avoid this, we resort to filter out all the diff hunks that do not contain our invocation.
+        try {
+            hunkFilter.applyFilteredPatch(method.getClassFile(), delay.getKeyword());
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            // Keep the model in sync with the file on disk, which has been restored
+            invocation.delete();
+            throw new RuntimeException("Error while filtering the patch: " + e.getMessage(), e);
+        }
+        return new Inserted(anchor, invocation::delete);
     }
 }
@@ -0,0 +1,120 @@
+package it.univaq.disim.spencer.injectblackhole;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import it.univaq.disim.spencer.injectblackhole.measure.Measurement;
+import it.univaq.disim.spencer.injectblackhole.measure.Statistics;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.ParentCommand;
+
+/**
+ * Measure the slowdown of injected methods, as the ground truth of each injection: every method
+ * is benchmarked with the compiled classes of the target before and after the injection.
+ */
+@Command(
+    name = "measure",
+    mixinStandardHelpOptions = true,
+    description = "Benchmark injected methods with the classes of the target before and after the injection, "
+        + "and report the slowdown with its confidence interval as JSON, with the overhead of a call, which is "
+        + "included in both versions and deflates the relative slowdown of short methods. The target and delay options of the "
+        + "main command are optional, and only recorded in the report; its target method (-x) is measured by default."
+)
+public class Measure implements Callable<Integer> {
+    private static final Logger LOGGER = Logger.getLogger(Measure.class.getName());
+
+    public record Report(String target, String delay, int forks, int warmupIterations, int iterations,
+                         long iterationMillis, double confidence, List<Measurement.Result> results) {
+    }
+
+    @ParentCommand
+    private InjectBlackhole options;
+
+    @Option(names = { "--baseline" }, required = true, split = "${sys:path.separator}",
+            description = "Compiled classes of the target before the injection (directories or jars)")
+    private List<Path> baseline;
+
+    @Option(names = { "--injected" }, required = true, split = "${sys:path.separator}",
+            description = "Compiled classes of the target after the injection (directories or jars)")
+    private List<Path> injected;
+
+    @Option(names = { "--classpath" }, split = "${sys:path.separator}",
+            description = "Dependencies of the target")
+    private List<Path> dependencies = new ArrayList<>();
+
+    @Option(names = { "--method" },
+            description = "Fully qualified name of a method to measure, e.g., \"com.acme.Calc.add(int,int)\" (repeatable)")
+    private List<String> methods = new ArrayList<>();
+
+    @Option(names = { "--forks" }, defaultValue = "3",
+            description = "Number of forked JVMs per version (default: ${DEFAULT-VALUE})")
+    private int forks;
+
+    @Option(names = { "--warmup-iterations" }, defaultValue = "5",
+            description = "Number of warm-up iterations per fork (default: ${DEFAULT-VALUE})")
+    private int warmupIterations;
+
+    @Option(names = { "--iterations" }, defaultValue = "10",
+            description = "Number of measurement iterations per fork (default: ${DEFAULT-VALUE})")
+    private int iterations;
+
+    @Option(names = { "--iteration-ms" }, defaultValue = "200",
+            description = "Duration of an iteration, in milliseconds (default: ${DEFAULT-VALUE})")
+    private long iterationMillis;
+
+    @Option(names = { "--jvm-arg" },
+            description = "Argument of the forked JVMs, e.g., -Xmx1g (repeatable)")
+    private List<String> jvmArguments = new ArrayList<>();
+
+    @Option(names = { "-o", "--output" },
+            description = "JSON report (default: standard output)")
+    private Path outputFile;
+
+    @Override
+    public Integer call() throws Exception {
+        List<String> targets = new ArrayList<>(methods);
+        if (targets.isEmpty() && options.getTargetMethod() != null) {
+            targets.add(options.getTargetMethod());
+        }
+        if (targets.isEmpty()) {
+            LOGGER.severe("No method to measure: use --method or the target method (-x) of the main command");
+            return 1;
+        }
+        if (forks < 1 || iterations < 2 || iterationMillis < 1) {
+            LOGGER.severe("At least 1 fork, 2 iterations and 1 ms per iteration are needed");
+            return 1;
+        }
+        Measurement measurement = new Measurement(baseline, injected);
+        measurement.setDependencies(dependencies);
+        measurement.setJvmArguments(jvmArguments);
+        measurement.setForks(forks);
+        measurement.setWarmupIterations(warmupIterations);
+        measurement.setIterations(iterations);
+        measurement.setIterationMillis(iterationMillis);
+        List<Measurement.Result> results = new ArrayList<>();
+        for (String method : targets) {
+            LOGGER.info("Measuring " + method);
+            results.add(measurement.measure(method));
+        }
+
+        // The delay as given, without calibrating it
+        String target = options.getTargetLibraryPath() != null ? options.getTargetLibraryPath().toString() : null;
+        Report report = new Report(target, options.describeDelay(), forks, warmupIterations, iterations,
+                                   iterationMillis, Statistics.CONFIDENCE, results);
+        ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        if (outputFile != null) {
+            mapper.writeValue(outputFile.toFile(), report);
+            LOGGER.info("Report written to " + outputFile);
+        } else {
+            System.out.println(mapper.writeValueAsString(report));
+        }
+        return results.stream().allMatch(result -> result.error() == null) ? 0 : 1;
+    }
+}
@@ -0,0 +1,420 @@
+package it.univaq.disim.spencer.injectblackhole;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+
+import it.univaq.disim.spencer.injectblackhole.analysis.Method;
+import it.univaq.disim.spencer.injectblackhole.exception.NoSuitableStatementsInMethod;
+import it.univaq.disim.spencer.injectblackhole.injection.Injection;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.ParentCommand;
+
+/**
+ * Serve injections from a long-running process, so that the JVM, Spoon and the models of the files stay warm:
+ * one JSON request per line, one JSON response per line with the id of its request.
+ * <p>
+ * Requests on different files run concurrently; the requests on the same file are serialized,
+ * since the model of a compilation unit is not thread-safe.
+ */
+@Command(
+    name = "serve",
+    mixinStandardHelpOptions = true,
+    description = "Keep the models of the target warm and serve newline-delimited JSON requests over standard input "
+        + "and output, or a Unix domain socket: {\"id\": 1, \"op\": \"inject\", \"method\": \"com.acme.Calc.add(int,int)\", "
+        + "\"mode\": \"BEGIN\"}, {\"op\": \"revert\", \"file\": \"...\"} (all the files without file), "
+        + "{\"op\": \"sites\", \"file\": \"...\"} (the candidate methods and statement lines of a file, a method or all the files), "
+        + "{\"op\": \"injections\"} (the injections in place) and {\"op\": \"shutdown\"}. The delay and injection options of the main command apply to every injection."
+)
+public class Serve implements Callable<Integer> {
+    private static final Logger LOGGER = Logger.getLogger(Serve.class.getName());
+
+    public record Request(JsonNode id, String op, String method, InjectionMode mode, String file) {
+    }
+
+    /**
+     * A method that can host an injection: at its beginning, or before the statements at the given lines
+     */
+    public record Site(String method, String file, List<Integer> lines) {
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public record Response(JsonNode id, boolean ok, String error, Injection injection, List<Injection> injections,
+                           List<Site> sites, List<String> reverted) {
+
+        static Response success(JsonNode id) {
+            return new Response(id, true, null, null, null, null, null);
+        }
+
+        static Response failure(JsonNode id, String error) {
+            return new Response(id, false, error, null, null, null, null);
+        }
+
+        static Response of(JsonNode id, Injection injection) {
+            return new Response(id, true, null, injection, null, null, null);
+        }
+    }
+
+    // The original content of an injected file, to revert it, and its injections
+    private record InjectedFile(byte[] original, List<Injection> injections) {
+    }
+
+    @ParentCommand
+    private InjectBlackhole options;
+
+    @Option(names = { "--socket" },
+            description = "Unix domain socket to listen on, one session per connection (default: standard input and output)")
+    private Path socket;
+
+    @Option(names = { "--threads" }, defaultValue = "4",
+            description = "Number of requests served concurrently (default: ${DEFAULT-VALUE})")
+    private int threads;
+
+    private final ObjectMapper mapper = JsonMapper.builder()
+        .enable(MapperFeature.ACCEPT_CASE_INSENSITIVE_ENUMS)
+        .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+        .build();
+    private Injector injector;
+    private ExecutorService executor;
+    // One lock per compilation unit, and one for the lookups that must parse a whole package
+    private final Map<Path, Object> locks = new ConcurrentHashMap<>();
+    private final Object lookupLock = new Object();
+    private final Map<Path, InjectedFile> injectedFiles = new ConcurrentHashMap<>();
+    private volatile boolean stopped;
+    private ServerSocketChannel server;
+
+    @Override
+    public Integer call() throws Exception {
+        options.requireInjectionOptions();
+        if (!options.getTargetLibraryPath().toFile().exists()) {
+            LOGGER.severe("Invalid path: " + options.getTargetLibraryPath());
+            return 1;
+        }
+        if (options.getBackend() == Backend.BYTECODE) {
+            LOGGER.severe("The BYTECODE backend rewrites a whole jar or class directory, it cannot be served");
+            return 1;
+        }
+        if (threads < 1) {
+            LOGGER.severe("At least 1 thread is needed");
+            return 1;
+        }
+        long delay;
+        try {
+            delay = options.resolveDelay();
+        } catch (IllegalArgumentException e) {
+            LOGGER.severe(e.getMessage());
+            return 1;
+        }
+
+        // Every request writes its injection at once, and the models are per file, so that they can be locked separately
+        injector = options.createInjector(options.getTargetLibraryPath(), delay);
+        injector.setBatch(false);
+        if (options.getRandomSeed() != 0) {
+            injector.setSeed(options.getRandomSeed());
+        }
+        if (options.getCacheDir() != null) {
+            injector.useSiteCache(options.getCacheDir());
+        }
+        LOGGER.info("Serving %d Java files of %s".formatted(injector.getJavaFiles().size(), options.getTargetLibraryPath()));
+
+        executor = Executors.newFixedThreadPool(threads);
+        try {
+            if (socket == null) {
+                serve(System.in, System.out);
+            } else {
+                listen();
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        if (!injectedFiles.isEmpty()) {
+            LOGGER.info("%d files are left injected".formatted(injectedFiles.size()));
+        }
+        return 0;
+    }
+
+    private void listen() throws IOException, InterruptedException {
+        Files.deleteIfExists(socket);
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        LOGGER.info("Listening on " + socket);
+        try {
+            while (!stopped) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (IOException e) {
+                    // Closed by a shutdown request
+                    break;
+                }
+                Thread session = new Thread(() -> {
+                    try (channel) {
+                        serve(Channels.newInputStream(channel), output(channel));
+                    } catch (IOException | InterruptedException e) {
+                        LOGGER.severe("Session closed: " + e.getMessage());
+                    }
+                }, "serve-session");
+                session.setDaemon(true);
+                session.start();
+            }
+        } finally {
+            server.close();
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    // The streams of Channels lock the channel while a read is blocked, so the responses are written to the channel itself
+    private static OutputStream output(SocketChannel channel) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        };
+    }
+
+    // Read the requests of a session until the end of the input or a shutdown, and wait for their responses
+    private void serve(InputStream input, OutputStream output) throws IOException, InterruptedException {
+        PrintStream out = new PrintStream(output, false, StandardCharsets.UTF_8);
+        List<Future<?>> requests = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            if (line.isBlank()) {
+                continue;
+            }
+            Request request;
+            try {
+                request = mapper.readValue(line, Request.class);
+            } catch (JsonProcessingException e) {
+                respond(out, Response.failure(null, "Invalid request: " + e.getOriginalMessage()));
+                continue;
+            }
+            if ("shutdown".equals(request.op())) {
+                // Answer once the requests in flight are done
+                waitFor(requests);
+                respond(out, Response.success(request.id()));
+                stop();
+                break;
+            }
+            requests.removeIf(Future::isDone);
+            requests.add(executor.submit(() -> respond(out, handle(request))));
+        }
+        waitFor(requests);
+    }
+
+    private static void waitFor(List<Future<?>> requests) throws InterruptedException {
+        for (Future<?> request : requests) {
+            try {
+                request.get();
+            } catch (ExecutionException e) {
+                LOGGER.severe("Request failed: " + e.getCause().getMessage());
+            }
+        }
+    }
+
+    private void stop() throws IOException {
+        stopped = true;
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private void respond(PrintStream out, Response response) {
+        String json;
+        try {
+            json = mapper.writeValueAsString(response);
+        } catch (JsonProcessingException e) {
+            json = "{\"ok\":false,\"error\":\"Cannot serialize the response\"}";
+        }
+        synchronized (out) {
+            out.println(json);
+            out.flush();
+        }
+    }
+
+    Response handle(Request request) {
+        if (request.op() == null) {
+            return Response.failure(request.id(), "Missing op");
+        }
+        try {
+            return switch (request.op()) {
+                case "inject" -> inject(request);
+                case "revert" -> revert(request);
+                case "sites" -> sites(request);
+                case "injections" -> new Response(request.id(), true, null, null, injections(), null, null);
+                default -> Response.failure(request.id(), "Unknown op: " + request.op());
+            };
+        } catch (NoSuitableStatementsInMethod e) {
+            return Response.failure(request.id(), e.getMessage());
+        } catch (RuntimeException e) {
+            LOGGER.severe("Error while serving %s: %s".formatted(request.op(), e.getMessage()));
+            return Response.failure(request.id(), e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+    }
+
+    private Object lock(Path javaFile) {
+        return locks.computeIfAbsent(javaFile.toAbsolutePath().normalize(), file -> new Object());
+    }
+
+    private Response inject(Request request) {
+        if (request.method() == null) {
+            return Response.failure(request.id(), "Missing method");
+        }
+        InjectionMode mode = request.mode() != null ? request.mode() : InjectionMode.BEGIN;
+        Optional<Path> javaFile = injector.findFile(request.method());
+        if (javaFile.isPresent()) {
+            synchronized (lock(javaFile.get())) {
+                Optional<Method> method = injector.findMethod(request.method());
+                if (method.isEmpty()) {
+                    return Response.failure(request.id(), "Method not found: " + request.method());
+                }
+                return Response.of(request.id(), inject(method.get(), mode));
+            }
+        }
+
+        // The method is not in the file named after its class: the model of its whole package is parsed,
+        // and dropped afterwards, so that the next lookups of the file see the injection
+        synchronized (lookupLock) {
+            Optional<Method> method = injector.findMethod(request.method());
+            if (method.isEmpty()) {
+                return Response.failure(request.id(), "Method not found: " + request.method());
+            }
+            synchronized (lock(method.get().getClassFile())) {
+                Injection injection = inject(method.get(), mode);
+                injector.forget(method.get().getClassFile(), List.of());
+                return Response.of(request.id(), injection);
+            }
+        }
+    }
+
+    // Called with the lock of the file of the method
+    private Injection inject(Method method, InjectionMode mode) {
+        Path javaFile = method.getClassFile().toAbsolutePath().normalize();
+        InjectedFile injected = injectedFiles.get(javaFile);
+        if (injected == null) {
+            try {
+                injected = new InjectedFile(Files.readAllBytes(javaFile), new ArrayList<>());
+            } catch (IOException e) {
+                throw new RuntimeException("Error reading " + javaFile, e);
+            }
+        }
+        Injection injection = injector.injectInMethod(method, mode);
+        // Write the runtime class with the site of the injection
+        injector.flush();
+        injected.injections().add(injection);
+        injectedFiles.put(javaFile, injected);
+        LOGGER.info("Injected %s in %s:%d".formatted(injection.method(), injection.file(), injection.line()));
+        return injection;
+    }
+
+    private Response revert(Request request) {
+        List<Path> files = request.file() != null
+            ? List.of(options.getTargetLibraryPath().resolve(request.file()).toAbsolutePath().normalize())
+            : new ArrayList<>(injectedFiles.keySet());
+        List<String> reverted = new ArrayList<>();
+        for (Path javaFile : files) {
+            synchronized (lock(javaFile)) {
+                InjectedFile injected = injectedFiles.get(javaFile);
+                if (injected == null) {
+                    continue;
+                }
+                try {
+                    Files.write(javaFile, injected.original());
+                } catch (IOException e) {
+                    throw new RuntimeException("Error restoring " + javaFile, e);
+                }
+                // The cached model and the runtime sites still have the injections
+                injector.forget(javaFile, injected.injections().stream().map(Injection::method).toList());
+                injectedFiles.remove(javaFile);
+                reverted.add(javaFile.toString());
+            }
+        }
+        injector.flush();
+        return new Response(request.id(), true, null, null, null, null, reverted);
+    }
+
+    // The candidate sites of a method, of a file, or of all the files
+    private Response sites(Request request) {
+        List<Path> files;
+        if (request.method() != null) {
+            Optional<Path> javaFile = injector.findFile(request.method());
+            if (javaFile.isEmpty()) {
+                return Response.failure(request.id(), "Method not found: " + request.method());
+            }
+            files = List.of(javaFile.get());
+        } else if (request.file() != null) {
+            files = List.of(options.getTargetLibraryPath().resolve(request.file()).toAbsolutePath().normalize());
+        } else {
+            files = injector.getJavaFiles();
+        }
+        List<Site> sites = new ArrayList<>();
+        for (Path javaFile : files) {
+            // The model of the file may be parsed, or in use by an injection
+            Map<String, List<Integer>> methods;
+            synchronized (lock(javaFile)) {
+                methods = injector.getSites(javaFile);
+            }
+            for (Map.Entry<String, List<Integer>> method : methods.entrySet()) {
+                if (request.method() == null || request.method().equals(method.getKey())) {
+                    sites.add(new Site(method.getKey(), javaFile.toString(), method.getValue()));
+                }
+            }
+        }
+        return new Response(request.id(), true, null, null, null, sites, null);
+    }
+
+    private List<Injection> injections() {
+        List<Injection> injections = new ArrayList<>();
+        for (Path javaFile : injectedFiles.keySet()) {
+            synchronized (lock(javaFile)) {
+                InjectedFile injected = injectedFiles.get(javaFile);
+                if (injected != null) {
+                    injections.addAll(injected.injections());
+                }
+            }
+        }
+        return injections;
+    }
+}
@@ -1,21 +1,38 @@
 package it.univaq.disim.spencer.injectblackhole.analysis;
 
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import it.univaq.disim.spencer.injectblackhole.injection.DelayRuntime;
 import spoon.Launcher;
+import spoon.SpoonException;
 import spoon.compiler.Environment;
+import spoon.reflect.declaration.CtCompilationUnit;
 import spoon.reflect.declaration.CtMethod;
 import spoon.support.sniper.SniperJavaPrettyPrinter;
 
 public class CodeBase {
 
     private Path path;
+    private List<Path> inputs;
     private Launcher launcher;
-    
+
     public CodeBase(Path path) {
+        this(path, List.of(path));
+    }
+
+    /**
+     * A model of a subset of the files under a base path
+     * @param path the base path
+     * @param inputs the files (or directories) to parse
+     */
+    public CodeBase(Path path, List<Path> inputs) {
         this.path = path;
+        this.inputs = inputs;
     }
 
     public Path getPath() {
@@ -34,18 +51,73 @@ public class CodeBase {
            return new SniperJavaPrettyPrinter(env);
           }
         );
-        launcher.addInputResource(path.toString());
-        launcher.setSourceOutputDirectory(path.toString());
+        for (Path input : inputs) {
+            launcher.addInputResource(input.toString());
+        }
+        // Single files are written back in place by save(Path)
+        if (Files.isDirectory(path)) {
+            launcher.setSourceOutputDirectory(path.toString());
+        }
         launcher.buildModel();
-    } 
+    }
 
     public void save() throws IllegalStateException{
         launcher.prettyprint();
     }
 
+    /**
+     * Pretty-print a single compilation unit back to its original file,
+     * leaving every other file of the model untouched
+     * @param file the source file of the compilation unit
+     */
+    public void save(Path file) {
+        String source = print(file);
+        Charset encoding = launcher.getEnvironment().getEncoding();
+        try {
+            Files.writeString(file, source, encoding);
+        } catch (IOException e) {
+            throw new SpoonException("Error writing " + file, e);
+        }
+    }
+
+    /**
+     * Pretty-print a single compilation unit in memory
+     * @param file the source file of the compilation unit
+     * @return the printed source
+     */
+    public String print(Path file) {
+        CtCompilationUnit unit = getCompilationUnit(file);
+        if (unit == null) {
+            throw new SpoonException("No compilation unit for " + file + " in " + path);
+        }
+        return launcher.createPrettyPrinter().printCompilationUnit(unit);
+    }
+
+    public CtCompilationUnit getCompilationUnit(Path file) {
+        Path normalized = file.toAbsolutePath().normalize();
+        for (CtCompilationUnit unit : launcher.getFactory().CompilationUnit().getMap().values()) {
+            if (unit.getFile() != null && unit.getFile().toPath().toAbsolutePath().normalize().equals(normalized)) {
+                return unit;
+            }
+        }
+        return null;
+    }
+
     public List<CtMethod<?>> getMethods() {
         return launcher.getFactory().Class().getAll().stream()
+                // The generated runtime class of the switchable delays is not part of the target library
+                .filter(ctClass -> !ctClass.getQualifiedName().equals(DelayRuntime.QUALIFIED_NAME))
                 .flatMap(ctClass -> ctClass.getMethods().stream())
                 .collect(Collectors.toList());
     }
+
+    /**
+     * Get the methods that can host an injection (i.e., non-abstract methods with a body)
+     * @return List of methods
+     */
+    public List<CtMethod<?>> getInjectableMethods() {
+        return getMethods().stream()
+                .filter(method -> !method.isAbstract() && method.getBody() != null)
+                .collect(Collectors.toList());
+    }
 }
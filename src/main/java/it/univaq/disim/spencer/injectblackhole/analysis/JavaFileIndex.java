@@ -0,0 +1,197 @@
+package it.univaq.disim.spencer.injectblackhole.analysis;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/**
+ * The Java files of a target library, filtered by include and exclude globs (relative to the
+ * base path). The tree is walked once and the files are served from memory; pruned directories
+ * (tests, build outputs, generated sources, hidden directories) are never entered.
+ */
+public class JavaFileIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(JavaFileIndex.class.getName());
+
+    public static final List<String> DEFAULT_EXCLUDES = List.of(
+        "**/src/test/**",
+        "**/generated-sources/**",
+        "**/generated-test-sources/**",
+        "**/package-info.java",
+        "**/module-info.java");
+    // Build output directories, only pruned next to a build file, so that packages with the same name are kept
+    private static final List<String> OUTPUT_DIRECTORIES = List.of("target", "build", "out");
+    private static final List<String> BUILD_FILES = List.of("pom.xml", "build.gradle", "build.gradle.kts");
+
+    /**
+     * Modification time and size of a file, to detect changes without reading it
+     */
+    public record FileStamp(long lastModified, long size) {
+    }
+
+    private final Path basePath;
+    private final List<PathMatcher> includes;
+    private final List<PathMatcher> excludes;
+    private Map<Path, FileStamp> files;
+
+    /**
+     * @param basePath the base path of the target library
+     * @param includes globs of the files to index (all the Java files if empty)
+     * @param excludes globs of the files and directories to skip, in addition to the default ones
+     */
+    public JavaFileIndex(Path basePath, List<String> includes, List<String> excludes) {
+        this.basePath = basePath.toAbsolutePath().normalize();
+        this.includes = compile(includes);
+        List<String> allExcludes = new ArrayList<>(DEFAULT_EXCLUDES);
+        allExcludes.addAll(excludes);
+        this.excludes = compile(allExcludes);
+    }
+
+    public JavaFileIndex(Path basePath) {
+        this(basePath, List.of(), List.of());
+    }
+
+    private static List<PathMatcher> compile(List<String> globs) {
+        List<PathMatcher> matchers = new ArrayList<>();
+        for (String glob : globs) {
+            matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+            // "**/" requires at least one directory, so match the top level too
+            if (glob.startsWith("**/")) {
+                matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob.substring(3)));
+            }
+        }
+        return matchers;
+    }
+
+    public Path getBasePath() {
+        return basePath;
+    }
+
+    /**
+     * Whether a file is indexed, according to the globs
+     * @param javaFile the file
+     * @return true if the file is a Java file matching the globs
+     */
+    public boolean accepts(Path javaFile) {
+        Path relative = basePath.relativize(javaFile.toAbsolutePath().normalize());
+        return relative.toString().endsWith(".java")
+            && excludes.stream().noneMatch(matcher -> matcher.matches(relative))
+            && (includes.isEmpty() || includes.stream().anyMatch(matcher -> matcher.matches(relative)));
+    }
+
+    private boolean isPruned(Path directory) {
+        String name = directory.getFileName().toString();
+        if (name.startsWith(".")) {
+            return true;
+        }
+        if (OUTPUT_DIRECTORIES.contains(name)
+                && BUILD_FILES.stream().anyMatch(buildFile -> Files.exists(directory.resolveSibling(buildFile)))) {
+            return true;
+        }
+        // A directory is skipped if everything below it is excluded
+        Path relative = basePath.relativize(directory).resolve("_");
+        return excludes.stream().anyMatch(matcher -> matcher.matches(relative));
+    }
+
+    /**
+     * Walk the tree, without materializing it
+     * @param visitor called with every indexed file and its stamp, in lexicographic order,
+     *                so that seeded selections do not depend on the file system
+     */
+    public void walk(BiConsumer<Path, FileStamp> visitor) {
+        try {
+            walk(basePath, visitor);
+        } catch (IOException e) {
+            throw new RuntimeException("Error retrieving Java files", e);
+        }
+    }
+
+    private void walk(Path directory, BiConsumer<Path, FileStamp> visitor) throws IOException {
+        List<Path> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            stream.forEach(children::add);
+        }
+        Collections.sort(children);
+        for (Path child : children) {
+            BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class);
+            if (attributes.isDirectory()) {
+                if (!isPruned(child)) {
+                    walk(child, visitor);
+                }
+            } else if (attributes.isRegularFile() && accepts(child)) {
+                visitor.accept(child, new FileStamp(attributes.lastModifiedTime().toMillis(), attributes.size()));
+            }
+        }
+    }
+
+    private Map<Path, FileStamp> index() {
+        if (files == null) {
+            refresh();
+        }
+        return files;
+    }
+
+    /**
+     * Walk the tree again and update the index
+     * @return the files added or modified since the previous walk (all of them, the first time)
+     */
+    public List<Path> refresh() {
+        Map<Path, FileStamp> previous = files != null ? files : Collections.emptyMap();
+        Map<Path, FileStamp> current = new LinkedHashMap<>();
+        List<Path> changed = new ArrayList<>();
+        walk((file, stamp) -> {
+            current.put(file, stamp);
+            if (!Objects.equals(previous.get(file), stamp)) {
+                changed.add(file);
+            }
+        });
+        files = current;
+        LOGGER.fine("Indexed %d Java files in %s, %d changed".formatted(current.size(), basePath, changed.size()));
+        return changed;
+    }
+
+    public List<Path> getFiles() {
+        return new ArrayList<>(index().keySet());
+    }
+
+    public Map<Path, FileStamp> getStamps() {
+        return Collections.unmodifiableMap(index());
+    }
+
+    /**
+     * Draw distinct files uniformly while walking the tree (reservoir sampling),
+     * for trees too big to be indexed in memory
+     * @param count the number of files
+     * @param random the random generator
+     * @return the files, all of them if there are fewer than count
+     */
+    public List<Path> sample(int count, Random random) {
+        List<Path> reservoir = new ArrayList<>(count);
+        long[] seen = { 0 };
+        walk((file, stamp) -> {
+            seen[0]++;
+            if (reservoir.size() < count) {
+                reservoir.add(file);
+            } else {
+                long slot = (long) (random.nextDouble() * seen[0]);
+                if (slot < count) {
+                    reservoir.set((int) slot, file);
+                }
+            }
+        });
+        return reservoir;
+    }
+}
@@ -6,10 +6,20 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import spoon.reflect.code.BinaryOperatorKind;
+import spoon.reflect.code.CtBinaryOperator;
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.code.CtCase;
 import spoon.reflect.code.CtCatch;
+import spoon.reflect.code.CtComment;
+import spoon.reflect.code.CtConditional;
+import spoon.reflect.code.CtIf;
+import spoon.reflect.code.CtLoop;
 import spoon.reflect.code.CtStatement;
+import spoon.reflect.code.CtStatementList;
+import spoon.reflect.declaration.CtElement;
 import spoon.reflect.declaration.CtMethod;
-import spoon.reflect.visitor.filter.TypeFilter;
+import spoon.reflect.visitor.CtScanner;
 
 public class Method {
 
@@ -109,37 +119,69 @@ public class Method {
     public List<CtStatement> getTopLevelStatements() {
         List<CtStatement> topLevelStatements = new ArrayList<>();
 
-        // Get direct statements in the method body
+        // Single pre-order pass over the body, classifying the statements by their role in the AST
         if (method.getBody() != null) {
-            for (CtStatement stmt : method.getBody().getElements(new TypeFilter<>(CtStatement.class))) {
-                String thisStmt = stmt.toString();
-                String parentStmt = stmt.getParent().toString();
-
-                // Skip statements inside catch blocks
-                if (stmt.getParent(CtCatch.class) != null) {
-                    continue;
+            new CtScanner() {
+                @Override
+                public void visitCtCatch(CtCatch catchBlock) {
+                    // Skip statements inside catch blocks
                 }
 
-                // Skip statements at the same line as their parent
-                if (stmt.getPosition().getLine() == stmt.getParent().getPosition().getLine()) {
-                    continue;
+                @Override
+                protected void enter(CtElement element) {
+                    if (element instanceof CtStatement stmt && isBlockLevel(stmt)) {
+                        topLevelStatements.add(stmt);
+                    }
                 }
+            }.scan(method.getBody());
+        }
+        return topLevelStatements;
+    }
 
-                // Skip blocks starting and ending with a brace, because we will get individual statements inside them
-                if (thisStmt.startsWith("{") && thisStmt.endsWith("}")) {
-                    continue;
+    /**
+     * Get the cyclomatic complexity of the method (decision points + 1)
+     * @return the cyclomatic complexity
+     */
+    public int getCyclomaticComplexity() {
+        int[] decisions = { 0 };
+        if (method.getBody() != null) {
+            new CtScanner() {
+                @Override
+                protected void enter(CtElement element) {
+                    if (element instanceof CtIf || element instanceof CtLoop || element instanceof CtCatch
+                            || element instanceof CtConditional) {
+                        decisions[0]++;
+                    } else if (element instanceof CtCase<?> ctCase && !ctCase.getCaseExpressions().isEmpty()) {
+                        decisions[0]++;
+                    } else if (element instanceof CtBinaryOperator<?> operator
+                            && (operator.getKind() == BinaryOperatorKind.AND || operator.getKind() == BinaryOperatorKind.OR)) {
+                        decisions[0]++;
+                    }
                 }
+            }.scan(method.getBody());
+        }
+        return decisions[0] + 1;
+    }
 
-                // Skip argument expressions (check if inside parentheses)
-                Pattern argExpr = Pattern.compile("\\([^(]*" + Pattern.quote(thisStmt) + "[^)]*\\)");
-                Matcher argExprMatcher = argExpr.matcher(parentStmt);
-                if (argExprMatcher.find()) {
-                    continue;
-                }
+    private static boolean isBlockLevel(CtStatement stmt) {
+        // Skip blocks, because we will get individual statements inside them, and comments
+        if (stmt instanceof CtBlock || stmt instanceof CtComment) {
+            return false;
+        }
 
-                topLevelStatements.add(stmt);
-            }
+        // Only keep statements of a statement list (e.g., a block), which excludes argument expressions,
+        // conditions, loop headers and other expressions that happen to be statements
+        CtElement parent = stmt.getParent();
+        if (!(parent instanceof CtStatementList)) {
+            return false;
         }
-        return topLevelStatements;
+
+        // Skip the statements without a position, e.g., the delays already injected in a model that is kept warm
+        if (!stmt.getPosition().isValidPosition() || !parent.getPosition().isValidPosition()) {
+            return false;
+        }
+
+        // Skip statements at the same line as their parent
+        return stmt.getPosition().getLine() != parent.getPosition().getLine();
     }
 }
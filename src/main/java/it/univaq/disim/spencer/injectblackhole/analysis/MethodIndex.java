@@ -0,0 +1,141 @@
+package it.univaq.disim.spencer.injectblackhole.analysis;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import it.univaq.disim.spencer.injectblackhole.selection.SelectionWeight;
+import spoon.reflect.declaration.CtCompilationUnit;
+import spoon.reflect.declaration.CtMethod;
+
+/**
+ * A warm, shared Spoon model of the target library.
+ * Every source root is parsed once (in parallel) and all the injectable methods
+ * are indexed by fully qualified name and by source file.
+ */
+public class MethodIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(MethodIndex.class.getName());
+
+    private final List<CodeBase> codeBases = new ArrayList<>();
+    private final Map<String, Method> methodsByName = new LinkedHashMap<>();
+    private final Map<Path, List<Method>> methodsByFile = new LinkedHashMap<>();
+
+    private MethodIndex() {
+    }
+
+    public static MethodIndex build(List<Path> sourceRoots) {
+        return build(sourceRoots.stream().map(CodeBase::new).toList());
+    }
+
+    /**
+     * Build one model per source root (e.g., per module), in parallel, each with a subset of its files
+     * @param filesByRoot the Java files of each source root
+     * @return the index
+     */
+    public static MethodIndex build(Map<Path, List<Path>> filesByRoot) {
+        return build(filesByRoot.entrySet().stream()
+            .map(root -> new CodeBase(root.getKey(), root.getValue()))
+            .toList());
+    }
+
+    private static MethodIndex build(Collection<CodeBase> models) {
+        MethodIndex index = new MethodIndex();
+        int threads = Math.max(1, Math.min(models.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<CodeBase>> futures = new ArrayList<>();
+            for (CodeBase model : models) {
+                futures.add(executor.submit(() -> {
+                    model.load();
+                    return model;
+                }));
+            }
+            for (Future<CodeBase> future : futures) {
+                index.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while building the model", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error building the model", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        LOGGER.info("Indexed %d methods in %d files".formatted(index.methodsByName.size(), index.methodsByFile.size()));
+        return index;
+    }
+
+    private void add(CodeBase codeBase) {
+        codeBases.add(codeBase);
+
+        // Register every compilation unit, so that files without methods are still selectable
+        for (CtCompilationUnit unit : codeBase.getLauncher().getFactory().CompilationUnit().getMap().values()) {
+            if (unit.getFile() != null) {
+                methodsByFile.putIfAbsent(normalize(unit.getFile().toPath()), new ArrayList<>());
+            }
+        }
+
+        for (CtMethod<?> m : codeBase.getInjectableMethods()) {
+            Method method = new Method(m);
+            method.setCodeBase(codeBase);
+            methodsByName.putIfAbsent(method.getFQMethodName(), method);
+            methodsByFile.computeIfAbsent(normalize(method.getClassFile()), k -> new ArrayList<>()).add(method);
+        }
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    public List<CodeBase> getCodeBases() {
+        return Collections.unmodifiableList(codeBases);
+    }
+
+    public Optional<Method> find(String fqMethodName) {
+        return Optional.ofNullable(methodsByName.get(fqMethodName));
+    }
+
+    public List<Path> getFiles() {
+        return new ArrayList<>(methodsByFile.keySet());
+    }
+
+    public List<Method> getMethods(Path file) {
+        return methodsByFile.getOrDefault(normalize(file), Collections.emptyList());
+    }
+
+    /**
+     * Weight all the indexed methods
+     * @param weight the selection weight
+     * @return the fully qualified method names and their weights
+     */
+    public Map<String, Double> getMethodWeights(SelectionWeight weight) {
+        Map<String, Double> weights = new LinkedHashMap<>();
+        for (List<Method> methods : methodsByFile.values()) {
+            for (Method method : methods) {
+                int statements = weight == SelectionWeight.STATEMENTS ? method.getTopLevelStatements().size() : 0;
+                int complexity = weight == SelectionWeight.COMPLEXITY ? method.getCyclomaticComplexity() : 0;
+                weights.put(method.getFQMethodName(), weight.weight(methods.size(), statements, complexity));
+            }
+        }
+        return weights;
+    }
+
+    public List<String> getMethodNames() {
+        return new ArrayList<>(methodsByName.keySet());
+    }
+
+    public List<Method> getMethods() {
+        return new ArrayList<>(methodsByName.values());
+    }
+}
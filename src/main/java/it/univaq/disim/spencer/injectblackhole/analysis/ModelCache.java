@@ -0,0 +1,180 @@
+package it.univaq.disim.spencer.injectblackhole.analysis;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Spoon models of single compilation units, loaded on demand and kept in least recently
+ * used order up to a number of units and an estimated heap budget. Evicted units are
+ * parsed again from disk when needed, so they include the delays injected so far.
+ * The models in use, e.g., with injections that are not written yet, are pinned: they
+ * are not evicted, even if that keeps the cache over its bounds until they are unpinned.
+ */
+public class ModelCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ModelCache.class.getName());
+    // Rough heap footprint of a Spoon model (with the sniper printer metadata) per byte of source
+    public static final long HEAP_BYTES_PER_SOURCE_BYTE = 100;
+
+    private record Entry(CodeBase codeBase, long bytes) {
+    }
+
+    private final int maxUnits;
+    private final long maxBytes;
+    private final Consumer<CodeBase> onEviction;
+    private final LinkedHashMap<Path, Entry> models = new LinkedHashMap<>(16, 0.75f, true);
+    // Pin counts of the models in use, and the models loaded by the cache (weakly, once dropped)
+    private final Map<CodeBase, Integer> pins = new IdentityHashMap<>();
+    private final Set<CodeBase> loaded = Collections.newSetFromMap(new WeakHashMap<>());
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxUnits the maximum number of units kept in memory (0 for no limit)
+     * @param maxBytes the estimated heap budget of the units kept in memory (0 for no limit)
+     * @param onEviction called with each evicted model, e.g., to release what refers to it
+     */
+    public ModelCache(int maxUnits, long maxBytes, Consumer<CodeBase> onEviction) {
+        this.maxUnits = maxUnits;
+        this.maxBytes = maxBytes;
+        this.onEviction = onEviction;
+    }
+
+    /**
+     * Get the model of a Java file, loading it if it is not in memory
+     * @param javaFile the Java file
+     * @return the model of the file alone
+     */
+    public CodeBase get(Path javaFile) {
+        Path key = javaFile.toAbsolutePath().normalize();
+        synchronized (this) {
+            Entry entry = models.get(key);
+            if (entry != null) {
+                hits++;
+                return entry.codeBase();
+            }
+            misses++;
+        }
+
+        // Parse outside the lock, so that different files are loaded concurrently
+        CodeBase codeBase = new CodeBase(key);
+        codeBase.load();
+        Entry added = new Entry(codeBase, estimate(key));
+        synchronized (this) {
+            Entry entry = models.get(key);
+            if (entry != null) {
+                // Loaded concurrently by another thread: only one model of a file must be in use
+                return entry.codeBase();
+            }
+            models.put(key, added);
+            bytes += added.bytes();
+            loaded.add(codeBase);
+            evict(key);
+            return codeBase;
+        }
+    }
+
+    /**
+     * Keep a model in memory while it is in use, e.g., until its injections are written
+     * @param codeBase the model, loaded by this cache or not
+     */
+    public synchronized void pin(CodeBase codeBase) {
+        pins.merge(codeBase, 1, Integer::sum);
+    }
+
+    /**
+     * Release a model pinned before, and evict the models over the bounds
+     * @param codeBase the model
+     */
+    public synchronized void unpin(CodeBase codeBase) {
+        Integer count = pins.get(codeBase);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            pins.put(codeBase, count - 1);
+            return;
+        }
+        pins.remove(codeBase);
+        // Dropped before it was pinned, e.g., by the lookup of another thread: release it again,
+        // with what it got in the meantime
+        Entry entry = models.get(codeBase.getPath().toAbsolutePath().normalize());
+        if (loaded.contains(codeBase) && (entry == null || entry.codeBase() != codeBase)) {
+            onEviction.accept(codeBase);
+        }
+        evict(null);
+    }
+
+    /**
+     * Drop the model of a file, e.g., when the file was restored on disk
+     * @param javaFile the Java file
+     */
+    public synchronized void invalidate(Path javaFile) {
+        Entry entry = models.remove(javaFile.toAbsolutePath().normalize());
+        if (entry != null) {
+            bytes -= entry.bytes();
+            onEviction.accept(entry.codeBase());
+        }
+    }
+
+    private static long estimate(Path javaFile) {
+        try {
+            return Files.size(javaFile) * HEAP_BYTES_PER_SOURCE_BYTE;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void evict(Path keep) {
+        Iterator<Map.Entry<Path, Entry>> eldest = models.entrySet().iterator();
+        while (eldest.hasNext() && isOverBudget()) {
+            Map.Entry<Path, Entry> entry = eldest.next();
+            if (entry.getKey().equals(keep) || pins.containsKey(entry.getValue().codeBase())) {
+                continue;
+            }
+            eldest.remove();
+            bytes -= entry.getValue().bytes();
+            evictions++;
+            onEviction.accept(entry.getValue().codeBase());
+            LOGGER.fine("Evicted the model of " + entry.getKey());
+        }
+    }
+
+    private boolean isOverBudget() {
+        return (maxUnits > 0 && models.size() > maxUnits) || (maxBytes > 0 && bytes > maxBytes);
+    }
+
+    public synchronized int size() {
+        return models.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "%d units (~%d MB), %d hits, %d misses, %d evictions"
+            .formatted(models.size(), bytes >> 20, hits, misses, evictions);
+    }
+}
@@ -0,0 +1,255 @@
+package it.univaq.disim.spencer.injectblackhole.analysis;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import it.univaq.disim.spencer.injectblackhole.analysis.JavaFileIndex.FileStamp;
+import it.univaq.disim.spencer.injectblackhole.selection.SelectionWeight;
+
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.declaration.CtMethod;
+
+/**
+ * Persistent index of the methods and candidate injection sites of a target library.
+ * Entries are keyed by the content hash of each Java file, so only the files that
+ * changed since the last run are parsed again; files whose modification time and size
+ * did not change are not even read. Selections can be made from the index without
+ * loading Spoon at all.
+ */
+public class SiteCache {
+
+    private static final Logger LOGGER = Logger.getLogger(SiteCache.class.getName());
+    private static final String INDEX_FILE = "index.json";
+    private static final int FORMAT_VERSION = 5;
+
+    public record MethodEntry(String fqName, String signature, boolean hasBody, List<Integer> statementLines,
+                              int complexity) {
+    }
+
+    public record FileEntry(String hash, long lastModified, long size, List<MethodEntry> methods) {
+    }
+
+    public record Index(int version, Map<String, FileEntry> files) {
+    }
+
+    private final Path targetLibraryPath;
+    private final Path cacheDir;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private Map<String, FileEntry> files = new TreeMap<>();
+    // Derived from the files when they are set, so that lookups do not scan all the methods
+    private Map<String, String> fileByMethod = Map.of();
+    private List<String> methodNames = List.of();
+
+    public SiteCache(Path targetLibraryPath, Path cacheDir) {
+        this.targetLibraryPath = targetLibraryPath.toAbsolutePath().normalize();
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Share this index with a copy of the target library (e.g., a git worktree),
+     * whose files have the same content
+     * @param copyPath the base path of the copy
+     * @return the index of the copy
+     */
+    public SiteCache relocate(Path copyPath) {
+        SiteCache copy = new SiteCache(copyPath, cacheDir);
+        copy.files = files;
+        copy.fileByMethod = fileByMethod;
+        copy.methodNames = methodNames;
+        return copy;
+    }
+
+    /**
+     * Load the index from disk, re-analyze the files whose content changed and
+     * store the updated index back
+     * @param javaFiles the current Java files of the target library, with their stamps
+     * @param sourceRoots the source roots, to analyze the files of each module in its own model
+     */
+    public void refresh(Map<Path, FileStamp> javaFiles, SourceRoots sourceRoots) {
+        Map<String, FileEntry> cached = load();
+        Map<String, FileEntry> updated = new TreeMap<>();
+        Map<Path, FileStamp> stale = new TreeMap<>();
+        for (Map.Entry<Path, FileStamp> javaFile : javaFiles.entrySet()) {
+            String key = relativize(javaFile.getKey());
+            FileStamp stamp = javaFile.getValue();
+            FileEntry entry = cached.get(key);
+            if (entry != null && entry.lastModified() == stamp.lastModified() && entry.size() == stamp.size()) {
+                updated.put(key, entry);
+            } else if (entry != null && entry.hash().equals(hash(javaFile.getKey()))) {
+                // Touched but not modified, e.g., by a checkout
+                updated.put(key, new FileEntry(entry.hash(), stamp.lastModified(), stamp.size(), entry.methods()));
+            } else {
+                stale.put(javaFile.getKey().toAbsolutePath().normalize(), stamp);
+            }
+        }
+        LOGGER.info("Site cache: %d files up to date, %d to analyze".formatted(updated.size(), stale.size()));
+
+        if (!stale.isEmpty()) {
+            updated.putAll(analyze(stale, sourceRoots));
+        }
+        setFiles(updated);
+        store();
+    }
+
+    private void setFiles(Map<String, FileEntry> files) {
+        Map<String, String> fileByMethod = new HashMap<>();
+        List<String> methodNames = new ArrayList<>();
+        for (Map.Entry<String, FileEntry> file : files.entrySet()) {
+            for (MethodEntry method : file.getValue().methods()) {
+                fileByMethod.putIfAbsent(method.fqName(), file.getKey());
+                if (method.hasBody()) {
+                    methodNames.add(method.fqName());
+                }
+            }
+        }
+        this.files = files;
+        this.fileByMethod = fileByMethod;
+        this.methodNames = Collections.unmodifiableList(methodNames);
+    }
+
+    private Map<String, FileEntry> analyze(Map<Path, FileStamp> stale, SourceRoots sourceRoots) {
+        // Parse the stale files of each source root together, in one model per root
+        MethodIndex index = MethodIndex.build(sourceRoots.groupByRoot(new ArrayList<>(stale.keySet())));
+
+        Map<Path, List<MethodEntry>> methodsByFile = new TreeMap<>();
+        for (CtMethod<?> m : index.getCodeBases().stream().flatMap(codeBase -> codeBase.getMethods().stream()).toList()) {
+            Method method = new Method(m);
+            // Like CodeBase.getInjectableMethods: abstract and native methods have no body to inject in
+            boolean hasBody = !m.isAbstract() && m.getBody() != null;
+            List<Integer> statementLines = !hasBody
+                ? Collections.emptyList()
+                : method.getTopLevelStatements().stream()
+                    .map(CtStatement::getPosition)
+                    .map(position -> position.getLine())
+                    .collect(Collectors.toList());
+            int complexity = hasBody ? method.getCyclomaticComplexity() : 0;
+            methodsByFile.computeIfAbsent(method.getClassFile().toAbsolutePath().normalize(), k -> new ArrayList<>())
+                .add(new MethodEntry(method.getFQMethodName(), method.getMethodName(), hasBody, statementLines,
+                                     complexity));
+        }
+
+        Map<String, FileEntry> entries = new TreeMap<>();
+        for (Map.Entry<Path, FileStamp> file : stale.entrySet()) {
+            List<MethodEntry> methods = methodsByFile.getOrDefault(file.getKey(), Collections.emptyList());
+            FileStamp stamp = file.getValue();
+            entries.put(relativize(file.getKey()),
+                        new FileEntry(hash(file.getKey()), stamp.lastModified(), stamp.size(), methods));
+        }
+        return entries;
+    }
+
+    private Map<String, FileEntry> load() {
+        Path indexFile = cacheDir.resolve(INDEX_FILE);
+        if (!Files.exists(indexFile)) {
+            return new TreeMap<>();
+        }
+        try {
+            Index index = mapper.readValue(indexFile.toFile(), Index.class);
+            if (index.version() != FORMAT_VERSION) {
+                LOGGER.info("Ignoring site cache with format version " + index.version());
+                return new TreeMap<>();
+            }
+            return new TreeMap<>(index.files());
+        } catch (IOException e) {
+            LOGGER.warning("Ignoring unreadable site cache: " + e.getMessage());
+            return new TreeMap<>();
+        }
+    }
+
+    private void store() {
+        try {
+            Files.createDirectories(cacheDir);
+            // Write to a temporary file first, so that concurrent runs never read a partial index
+            Path tmp = Files.createTempFile(cacheDir, INDEX_FILE, ".tmp");
+            mapper.writeValue(tmp.toFile(), new Index(FORMAT_VERSION, files));
+            Files.move(tmp, cacheDir.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warning("Error storing the site cache: " + e.getMessage());
+        }
+    }
+
+    private String relativize(Path javaFile) {
+        return targetLibraryPath.relativize(javaFile.toAbsolutePath().normalize()).toString();
+    }
+
+    private static String hash(Path javaFile) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(Files.readAllBytes(javaFile)));
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException("Error hashing " + javaFile, e);
+        }
+    }
+
+    public List<Path> getFiles() {
+        return files.keySet().stream()
+            .map(targetLibraryPath::resolve)
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Get the methods of a file that have a body
+     * @param javaFile the Java file
+     * @return List of method entries
+     */
+    public List<MethodEntry> getMethods(Path javaFile) {
+        FileEntry entry = files.get(relativize(javaFile));
+        if (entry == null) {
+            return Collections.emptyList();
+        }
+        return entry.methods().stream()
+            .filter(MethodEntry::hasBody)
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Weight all the methods that have a body
+     * @param weight the selection weight
+     * @return the fully qualified method names and their weights
+     */
+    public Map<String, Double> getMethodWeights(SelectionWeight weight) {
+        Map<String, Double> weights = new LinkedHashMap<>();
+        for (FileEntry file : files.values()) {
+            List<MethodEntry> methods = file.methods().stream().filter(MethodEntry::hasBody).toList();
+            for (MethodEntry method : methods) {
+                weights.put(method.fqName(),
+                    weight.weight(methods.size(), method.statementLines().size(), method.complexity()));
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Get the names of all the methods that have a body
+     * @return List of fully qualified method names
+     */
+    public List<String> getMethodNames() {
+        return methodNames;
+    }
+
+    /**
+     * Find the file that declares a method
+     * @param fqMethodName the fully qualified method name
+     * @return the Java file, if the method is indexed
+     */
+    public Optional<Path> findFile(String fqMethodName) {
+        return Optional.ofNullable(fileByMethod.get(fqMethodName)).map(targetLibraryPath::resolve);
+    }
+}
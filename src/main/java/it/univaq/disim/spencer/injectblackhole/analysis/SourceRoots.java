@@ -0,0 +1,195 @@
+package it.univaq.disim.spencer.injectblackhole.analysis;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * The source roots of a target library: the modules of a Maven or Gradle build,
+ * or the conventional src/main/java directories, or the target itself.
+ * Classes are located by their path below a source root, without parsing.
+ */
+public class SourceRoots {
+
+    private static final Logger LOGGER = Logger.getLogger(SourceRoots.class.getName());
+    private static final Path CONVENTIONAL_ROOT = Path.of("src", "main", "java");
+    private static final int CONVENTIONAL_DEPTH = 8;
+    private static final Pattern GRADLE_INCLUDE = Pattern.compile("^\\s*include\\b(.*)$", Pattern.MULTILINE);
+    private static final Pattern GRADLE_PROJECT = Pattern.compile("[\"']:?([^\"']+)[\"']");
+
+    private final Path basePath;
+    private final List<Path> roots;
+
+    public SourceRoots(Path basePath, List<Path> roots) {
+        this.basePath = basePath.toAbsolutePath().normalize();
+        this.roots = roots.stream().map(root -> root.toAbsolutePath().normalize()).collect(Collectors.toList());
+    }
+
+    /**
+     * Discover the source roots of a target library
+     * @param basePath the base path of the target library
+     * @return the source roots
+     */
+    public static SourceRoots discover(Path basePath) {
+        Path base = basePath.toAbsolutePath().normalize();
+        Set<Path> roots = new LinkedHashSet<>();
+        if (Files.exists(base.resolve("pom.xml"))) {
+            addMavenRoots(base, roots);
+        }
+        for (String settings : List.of("settings.gradle", "settings.gradle.kts")) {
+            if (Files.exists(base.resolve(settings))) {
+                addGradleRoots(base, base.resolve(settings), roots);
+            }
+        }
+        if (roots.isEmpty()) {
+            addConventionalRoots(base, roots);
+        }
+        if (roots.isEmpty()) {
+            roots.add(base);
+        }
+        LOGGER.info("Found %d source roots in %s".formatted(roots.size(), base));
+        return new SourceRoots(base, new ArrayList<>(roots));
+    }
+
+    private static void addMavenRoots(Path module, Set<Path> roots) {
+        Document pom;
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            pom = factory.newDocumentBuilder().parse(module.resolve("pom.xml").toFile());
+        } catch (IOException | ParserConfigurationException | SAXException e) {
+            LOGGER.warning("Cannot read %s: %s".formatted(module.resolve("pom.xml"), e.getMessage()));
+            return;
+        }
+
+        // The project's own sources, if any (e.g., not for aggregator poms)
+        Path sourceDirectory = module.resolve(CONVENTIONAL_ROOT);
+        NodeList sourceDirectories = pom.getDocumentElement().getElementsByTagName("sourceDirectory");
+        if (sourceDirectories.getLength() > 0) {
+            sourceDirectory = module.resolve(sourceDirectories.item(0).getTextContent().strip()
+                .replace("${project.basedir}/", "").replace("${basedir}/", ""));
+        }
+        if (Files.isDirectory(sourceDirectory)) {
+            roots.add(sourceDirectory.normalize());
+        }
+
+        // The modules, including the ones of the profiles
+        NodeList modules = pom.getDocumentElement().getElementsByTagName("module");
+        for (int i = 0; i < modules.getLength(); i++) {
+            if (modules.item(i).getParentNode() instanceof Element parent && parent.getTagName().equals("modules")) {
+                Path child = module.resolve(modules.item(i).getTextContent().strip()).normalize();
+                if (Files.isRegularFile(child)) {
+                    // A module can be the path of its pom
+                    child = child.getParent();
+                }
+                if (Files.exists(child.resolve("pom.xml"))) {
+                    addMavenRoots(child, roots);
+                }
+            }
+        }
+    }
+
+    private static void addGradleRoots(Path base, Path settings, Set<Path> roots) {
+        Path sourceDirectory = base.resolve(CONVENTIONAL_ROOT);
+        if (Files.isDirectory(sourceDirectory)) {
+            roots.add(sourceDirectory);
+        }
+        try {
+            Matcher include = GRADLE_INCLUDE.matcher(Files.readString(settings));
+            while (include.find()) {
+                Matcher project = GRADLE_PROJECT.matcher(include.group(1));
+                while (project.find()) {
+                    Path module = base.resolve(project.group(1).replace(':', '/')).resolve(CONVENTIONAL_ROOT).normalize();
+                    if (Files.isDirectory(module)) {
+                        roots.add(module);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Cannot read %s: %s".formatted(settings, e.getMessage()));
+        }
+    }
+
+    private static void addConventionalRoots(Path base, Set<Path> roots) {
+        try (Stream<Path> walk = Files.walk(base, CONVENTIONAL_DEPTH)) {
+            walk.filter(Files::isDirectory)
+                .filter(directory -> directory.endsWith(CONVENTIONAL_ROOT))
+                // Skip hidden directories, e.g., .git, but not the target itself, when it is a source root
+                .filter(directory -> directory.equals(base) || !base.relativize(directory).getName(0).toString().startsWith("."))
+                .sorted()
+                .forEach(roots::add);
+        } catch (IOException e) {
+            throw new RuntimeException("Error looking for source roots in " + base, e);
+        }
+    }
+
+    public Path getBasePath() {
+        return basePath;
+    }
+
+    public List<Path> getRoots() {
+        return roots;
+    }
+
+    /**
+     * Get the source root of a file: the innermost root that contains it, or the base path
+     * @param javaFile the Java file
+     * @return the source root
+     */
+    public Path getRoot(Path javaFile) {
+        Path file = javaFile.toAbsolutePath().normalize();
+        return roots.stream()
+            .filter(file::startsWith)
+            .max(Comparator.comparingInt(Path::getNameCount))
+            .orElse(basePath);
+    }
+
+    /**
+     * Group files by source root, e.g., to build one model per module
+     * @param javaFiles the Java files
+     * @return the files of each source root, in order
+     */
+    public Map<Path, List<Path>> groupByRoot(List<Path> javaFiles) {
+        Map<Path, List<Path>> groups = new LinkedHashMap<>();
+        for (Path javaFile : javaFiles) {
+            groups.computeIfAbsent(getRoot(javaFile), k -> new ArrayList<>()).add(javaFile);
+        }
+        return groups;
+    }
+
+    /**
+     * Map the fully qualified name of the top-level class of each file to the file,
+     * following the directory layout of the source roots
+     * @param javaFiles the Java files
+     * @return the files by fully qualified class name
+     */
+    public Map<String, Path> getClassFiles(List<Path> javaFiles) {
+        Map<String, Path> classFiles = new LinkedHashMap<>();
+        for (Path javaFile : javaFiles) {
+            Path relative = getRoot(javaFile).relativize(javaFile.toAbsolutePath().normalize());
+            String name = relative.toString().replace('\\', '/').replace('/', '.');
+            classFiles.putIfAbsent(name.substring(0, name.length() - ".java".length()), javaFile);
+        }
+        return classFiles;
+    }
+}
@@ -0,0 +1,194 @@
+package it.univaq.disim.spencer.injectblackhole.bytecode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import it.univaq.disim.spencer.injectblackhole.injection.Injection;
+import it.univaq.disim.spencer.injectblackhole.selection.SelectionWeight;
+
+/**
+ * Injects delays directly into the bytecode of a jar or of a class directory, and writes
+ * the result as a new jar or directory: no parsing, no patching and no rebuild of the target.
+ */
+public class BytecodeInjector {
+
+    private static final Logger LOGGER = Logger.getLogger(BytecodeInjector.class.getName());
+
+    private record Target(String entry, ClassNode classNode, MethodNode method) {
+    }
+
+    private final Path input;
+    private final DelayWeaver weaver;
+    private Random random = new Random();
+    // Every entry of the input, in order: classes are replaced when modified
+    private final Map<String, byte[]> entries = new LinkedHashMap<>();
+    private final Map<String, Target> methods = new LinkedHashMap<>();
+    private final Map<String, ClassNode> modified = new HashMap<>();
+
+    /**
+     * @param input the jar or class directory
+     * @param weaver the delay
+     */
+    public BytecodeInjector(Path input, DelayWeaver weaver) {
+        this.input = input;
+        this.weaver = weaver;
+    }
+
+    public void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+
+    public Random getRandom() {
+        return random;
+    }
+
+    /**
+     * Read all the entries of the input and index the methods that can host an injection
+     */
+    public void load() throws IOException {
+        if (Files.isDirectory(input)) {
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(input)) {
+                files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                entries.put(input.relativize(file).toString().replace('\\', '/'), Files.readAllBytes(file));
+            }
+        } else {
+            try (JarFile jar = new JarFile(input.toFile())) {
+                Enumeration<JarEntry> jarEntries = jar.entries();
+                while (jarEntries.hasMoreElements()) {
+                    JarEntry entry = jarEntries.nextElement();
+                    if (!entry.isDirectory()) {
+                        try (InputStream stream = jar.getInputStream(entry)) {
+                            entries.put(entry.getName(), stream.readAllBytes());
+                        }
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            if (entry.getKey().endsWith(".class") && !entry.getKey().endsWith("module-info.class")) {
+                ClassNode classNode = new ClassNode();
+                new ClassReader(entry.getValue()).accept(classNode, 0);
+                for (MethodNode method : classNode.methods) {
+                    if (DelayWeaver.isInjectable(method)) {
+                        methods.putIfAbsent(DelayWeaver.fqMethodName(classNode.name, method),
+                                            new Target(entry.getKey(), classNode, method));
+                    }
+                }
+            }
+        }
+        LOGGER.info("Indexed %d methods in %d entries of %s".formatted(methods.size(), entries.size(), input));
+    }
+
+    public List<String> getMethodNames() {
+        return new ArrayList<>(methods.keySet());
+    }
+
+    /**
+     * Weight all the methods, the classes playing the role of the files
+     * @param weight the selection weight
+     * @return the fully qualified method names and their weights
+     */
+    public Map<String, Double> getMethodWeights(SelectionWeight weight) {
+        Map<String, Long> methodsPerClass = methods.values().stream()
+            .collect(Collectors.groupingBy(Target::entry, Collectors.counting()));
+        Map<String, Double> weights = new LinkedHashMap<>();
+        for (Map.Entry<String, Target> method : methods.entrySet()) {
+            MethodNode node = method.getValue().method();
+            int statements = weight == SelectionWeight.STATEMENTS ? DelayWeaver.getLines(node).size() : 0;
+            int complexity = weight == SelectionWeight.COMPLEXITY ? DelayWeaver.getCyclomaticComplexity(node) : 0;
+            weights.put(method.getKey(), weight.weight(methodsPerClass.get(method.getValue().entry()).intValue(),
+                                                       statements, complexity));
+        }
+        return weights;
+    }
+
+    public boolean contains(String fqMethodName) {
+        return methods.containsKey(fqMethodName);
+    }
+
+    /**
+     * Inject the delay in a method
+     * @param fqMethodName the fully qualified method name
+     * @param atBegin at the beginning, or before the first instruction of a random source line
+     * @return where the delay was injected
+     */
+    public Injection injectInMethod(String fqMethodName, boolean atBegin) {
+        Target target = methods.get(fqMethodName);
+        if (target == null) {
+            throw new IllegalArgumentException("Method not found: " + fqMethodName);
+        }
+
+        int line = weaver.inject(target.method(), atBegin, random);
+        modified.put(target.entry(), target.classNode());
+        return new Injection(fqMethodName, target.entry(), line, weaver.getAmount());
+    }
+
+    /**
+     * Write all the entries, with the modified classes, as a jar (if the name ends with .jar) or a directory
+     * @param output the output jar or directory
+     */
+    public void write(Path output) throws IOException {
+        // The frames are untouched, only the max stack has to be recomputed
+        Map<String, byte[]> classes = new HashMap<>();
+        for (Map.Entry<String, ClassNode> entry : modified.entrySet()) {
+            ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+            entry.getValue().accept(writer);
+            classes.put(entry.getKey(), writer.toByteArray());
+        }
+
+        if (output.getParent() != null) {
+            Files.createDirectories(output.getParent());
+        }
+        if (output.toString().endsWith(".jar")) {
+            try (OutputStream stream = Files.newOutputStream(output);
+                 JarOutputStream jar = new JarOutputStream(stream)) {
+                for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                    if (isSignature(entry.getKey())) {
+                        // The signatures do not match the modified classes anymore
+                        continue;
+                    }
+                    jar.putNextEntry(new JarEntry(entry.getKey()));
+                    jar.write(classes.getOrDefault(entry.getKey(), entry.getValue()));
+                    jar.closeEntry();
+                }
+            }
+        } else {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                Path file = output.resolve(entry.getKey());
+                Files.createDirectories(file.getParent());
+                Files.write(file, classes.getOrDefault(entry.getKey(), entry.getValue()));
+            }
+        }
+        LOGGER.info("Wrote %d modified classes to %s".formatted(classes.size(), output));
+    }
+
+    private static boolean isSignature(String entry) {
+        return entry.startsWith("META-INF/")
+            && (entry.endsWith(".SF") || entry.endsWith(".RSA") || entry.endsWith(".DSA") || entry.endsWith(".EC"));
+    }
+}
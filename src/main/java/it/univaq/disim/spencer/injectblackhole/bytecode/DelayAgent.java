@@ -0,0 +1,216 @@
+package it.univaq.disim.spencer.injectblackhole.bytecode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import it.univaq.disim.spencer.injectblackhole.analysis.Method;
+import it.univaq.disim.spencer.injectblackhole.injection.Kernel;
+import it.univaq.disim.spencer.injectblackhole.selection.WeightedSampler;
+
+/**
+ * Java agent injecting the delay when the target classes are loaded, so that the
+ * unmodified target artifact can be benchmarked with different delays:
+ * <pre>
+ * -javaagent:inject-blackhole.jar=delay=1000,targets=com.acme.Calc.add(int,int);com.acme.Calc.sum(java.util.List)
+ * -javaagent:inject-blackhole.jar=delay=1000,include=com.acme,count=5,seed=42,mode=RANDOM_POSITION
+ * </pre>
+ * Options (comma separated):
+ * <ul>
+ * <li>delay: the delay in the unit of the kernel (required)</li>
+ * <li>kernel: CPU (default) or PARK</li>
+ * <li>mode: BEGIN (default) or RANDOM_POSITION</li>
+ * <li>targets: fully qualified method names, separated by semicolons</li>
+ * <li>include, count, seed: otherwise, select count random methods of the classes in the packages
+ * of include (separated by semicolons) found on the class path</li>
+ * </ul>
+ */
+public class DelayAgent implements ClassFileTransformer {
+
+    private static final Logger LOGGER = Logger.getLogger(DelayAgent.class.getName());
+
+    private final Set<String> targets;
+    private final Set<String> targetClasses = new HashSet<>();
+    private final DelayWeaver weaver;
+    private final boolean atBegin;
+    private final long seed;
+
+    public DelayAgent(Set<String> targets, DelayWeaver weaver, boolean atBegin, long seed) {
+        this.targets = targets;
+        this.weaver = weaver;
+        this.atBegin = atBegin;
+        this.seed = seed;
+        for (String target : targets) {
+            targetClasses.add(new Method(target).getFQClassName().replace('.', '/'));
+        }
+    }
+
+    public static void premain(String arguments, Instrumentation instrumentation) throws IOException {
+        Map<String, String> options = parseArguments(arguments);
+        if (!options.containsKey("delay")) {
+            throw new IllegalArgumentException("inject-blackhole agent: the delay option is required");
+        }
+        DelayWeaver weaver = new DelayWeaver(Long.parseLong(options.get("delay")),
+                                             Kernel.valueOf(options.getOrDefault("kernel", "CPU").toUpperCase()));
+        boolean atBegin = options.getOrDefault("mode", "BEGIN").equalsIgnoreCase("BEGIN");
+        long seed = Long.parseLong(options.getOrDefault("seed", "0"));
+
+        Set<String> targets = new HashSet<>();
+        if (options.containsKey("targets")) {
+            for (String target : options.get("targets").split(";")) {
+                if (new Method(target).getPackageName() == null) {
+                    throw new IllegalArgumentException("inject-blackhole agent: invalid method name " + target);
+                }
+                targets.add(target);
+            }
+        } else if (options.containsKey("include") && options.containsKey("count")) {
+            List<String> packages = List.of(options.get("include").split(";"));
+            WeightedSampler<String> sampler = new WeightedSampler<>(findCandidates(packages));
+            Random random = new Random(seed);
+            for (int i = Integer.parseInt(options.get("count")); i > 0 && !sampler.isEmpty(); i--) {
+                targets.add(sampler.draw(random));
+            }
+        } else {
+            throw new IllegalArgumentException("inject-blackhole agent: either targets or include and count are required");
+        }
+
+        LOGGER.info("inject-blackhole agent: injecting %d tokens in %s".formatted(weaver.getAmount(), targets));
+        instrumentation.addTransformer(new DelayAgent(targets, weaver, atBegin, seed));
+    }
+
+    /**
+     * Split the agent arguments on the commas that are not within a method signature
+     * @param arguments the agent arguments
+     * @return the options
+     */
+    static Map<String, String> parseArguments(String arguments) {
+        Map<String, String> options = new LinkedHashMap<>();
+        if (arguments == null) {
+            return options;
+        }
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= arguments.length(); i++) {
+            char c = i < arguments.length() ? arguments.charAt(i) : ',';
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                String option = arguments.substring(start, i).trim();
+                if (!option.isEmpty()) {
+                    int equals = option.indexOf('=');
+                    if (equals < 0) {
+                        throw new IllegalArgumentException("inject-blackhole agent: invalid option " + option);
+                    }
+                    options.put(option.substring(0, equals).trim(), option.substring(equals + 1).trim());
+                }
+                start = i + 1;
+            }
+        }
+        return options;
+    }
+
+    private static Map<String, Double> findCandidates(List<String> packages) throws IOException {
+        // Same distribution as the FILE selection weight: uniform over the classes, then over their methods
+        Map<String, Double> candidates = new LinkedHashMap<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            for (byte[] classFile : readClasses(Path.of(entry), packages)) {
+                ClassNode classNode = new ClassNode();
+                new ClassReader(classFile).accept(classNode, ClassReader.SKIP_FRAMES);
+                List<MethodNode> methods = classNode.methods.stream()
+                    .filter(DelayWeaver::isInjectable)
+                    .collect(Collectors.toList());
+                for (MethodNode method : methods) {
+                    candidates.putIfAbsent(DelayWeaver.fqMethodName(classNode.name, method), 1.0 / methods.size());
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private static List<byte[]> readClasses(Path classPathEntry, List<String> packages) throws IOException {
+        List<String> prefixes = packages.stream().map(p -> p.replace('.', '/') + "/").collect(Collectors.toList());
+        List<byte[]> classes = new ArrayList<>();
+        if (Files.isDirectory(classPathEntry)) {
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(classPathEntry)) {
+                files = walk.filter(file -> file.toString().endsWith(".class")).sorted().collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                String name = classPathEntry.relativize(file).toString().replace('\\', '/');
+                if (prefixes.stream().anyMatch(name::startsWith)) {
+                    classes.add(Files.readAllBytes(file));
+                }
+            }
+        } else if (Files.isRegularFile(classPathEntry)) {
+            try (JarFile jar = new JarFile(classPathEntry.toFile())) {
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    if (entry.getName().endsWith(".class") && prefixes.stream().anyMatch(entry.getName()::startsWith)) {
+                        try (InputStream stream = jar.getInputStream(entry)) {
+                            classes.add(stream.readAllBytes());
+                        }
+                    }
+                }
+            }
+        }
+        return classes;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (className == null || !targetClasses.contains(className)) {
+            return null;
+        }
+        // Never let an error prevent the class from loading: keep it unmodified instead
+        try {
+            ClassNode classNode = new ClassNode();
+            new ClassReader(classfileBuffer).accept(classNode, 0);
+            boolean modified = false;
+            for (MethodNode method : classNode.methods) {
+                String fqMethodName = DelayWeaver.fqMethodName(classNode.name, method);
+                if (targets.contains(fqMethodName) && DelayWeaver.isInjectable(method)) {
+                    // A stream per method, so that the positions do not depend on the class loading order
+                    int line = weaver.inject(method, atBegin, new Random(seed ^ fqMethodName.hashCode()));
+                    LOGGER.info("inject-blackhole agent: injected the delay in %s at line %d".formatted(fqMethodName, line));
+                    modified = true;
+                }
+            }
+            if (!modified) {
+                return null;
+            }
+            ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+            classNode.accept(writer);
+            return writer.toByteArray();
+        } catch (RuntimeException e) {
+            LOGGER.severe("inject-blackhole agent: cannot instrument %s: %s".formatted(className, e.getMessage()));
+            return null;
+        }
+    }
+}
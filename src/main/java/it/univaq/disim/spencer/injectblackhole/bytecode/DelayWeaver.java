@@ -0,0 +1,170 @@
+package it.univaq.disim.spencer.injectblackhole.bytecode;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+
+import it.univaq.disim.spencer.injectblackhole.exception.NoSuitableStatementsInMethod;
+import it.univaq.disim.spencer.injectblackhole.injection.Kernel;
+
+/**
+ * Weaves the delay into the bytecode of a method: the bytecode counterpart of Delay.
+ * The inserted call pushes a long and consumes it, so it is valid at any instruction
+ * boundary and leaves the stack map frames untouched (only the max stack grows).
+ */
+public class DelayWeaver {
+
+    private final long amount;
+    private final Kernel kernel;
+
+    public DelayWeaver(long amount, Kernel kernel) {
+        if (kernel.needsRuntime()) {
+            throw new IllegalArgumentException(
+                "The %s kernel is implemented in the generated runtime class, which only exists in source form".formatted(kernel));
+        }
+        this.amount = amount;
+        this.kernel = kernel;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+    /**
+     * Get the name of a method in the format of Method.getFQMethodName, e.g., "package.Class.method(int,java.util.List)"
+     * @param className the internal name of the class, e.g., "package/Class"
+     * @param method the method
+     * @return the fully qualified method name
+     */
+    public static String fqMethodName(String className, MethodNode method) {
+        String parameters = Stream.of(Type.getArgumentTypes(method.desc))
+            .map(Type::getClassName)
+            .collect(Collectors.joining(","));
+        return "%s.%s(%s)".formatted(className.replace('/', '.'), method.name, parameters);
+    }
+
+    /**
+     * Whether a method can host an injection: a method with code written by the developers
+     * (no constructors, initializers, bridges or other compiler-generated methods)
+     * @param method the method
+     * @return true if the method can host an injection
+     */
+    public static boolean isInjectable(MethodNode method) {
+        int excluded = Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE | Opcodes.ACC_SYNTHETIC | Opcodes.ACC_BRIDGE;
+        return (method.access & excluded) == 0 && !method.name.startsWith("<") && method.instructions.size() > 0;
+    }
+
+    /**
+     * Get the source lines of a method, the bytecode counterpart of its statements
+     * @param method the method
+     * @return the distinct lines, in order of appearance
+     */
+    public static List<Integer> getLines(MethodNode method) {
+        Set<Integer> lines = new LinkedHashSet<>();
+        for (AbstractInsnNode node : method.instructions) {
+            if (node instanceof LineNumberNode lineNumber) {
+                lines.add(lineNumber.line);
+            }
+        }
+        return new ArrayList<>(lines);
+    }
+
+    /**
+     * Get the cyclomatic complexity of a method (conditional branches and switch cases + 1)
+     * @param method the method
+     * @return the cyclomatic complexity
+     */
+    public static int getCyclomaticComplexity(MethodNode method) {
+        int decisions = 0;
+        for (AbstractInsnNode node : method.instructions) {
+            if (node instanceof JumpInsnNode && node.getOpcode() != Opcodes.GOTO) {
+                decisions++;
+            } else if (node instanceof TableSwitchInsnNode tableSwitch) {
+                decisions += tableSwitch.labels.size();
+            } else if (node instanceof LookupSwitchInsnNode lookupSwitch) {
+                decisions += lookupSwitch.labels.size();
+            }
+        }
+        return decisions + 1;
+    }
+
+    private InsnList createCall() {
+        InsnList call = new InsnList();
+        call.add(new LdcInsnNode(amount));
+        call.add(new MethodInsnNode(Opcodes.INVOKESTATIC, kernel.getOwner().replace('.', '/'),
+                                    kernel.getMethodName(), "(J)V", false));
+        return call;
+    }
+
+    /**
+     * Insert the delay in a method
+     * @param method the method
+     * @param atBegin at the beginning, or before the first instruction of a random source line
+     * @param random the random generator choosing the line
+     * @return the line of the delay, or 0 if unknown
+     */
+    public int inject(MethodNode method, boolean atBegin, Random random) {
+        if (atBegin) {
+            return injectAtBegin(method);
+        }
+        List<Integer> lines = getLines(method);
+        if (lines.isEmpty()) {
+            throw new NoSuitableStatementsInMethod("No line numbers in method " + method.name);
+        }
+        int line = lines.get(random.nextInt(lines.size()));
+        injectBeforeLine(method, line);
+        return line;
+    }
+
+    /**
+     * Insert the delay at the beginning of a method
+     * @param method the method
+     * @return the first line of the method, or 0 if unknown
+     */
+    public int injectAtBegin(MethodNode method) {
+        method.instructions.insert(createCall());
+        method.maxStack += 2;
+        List<Integer> lines = getLines(method);
+        return lines.isEmpty() ? 0 : lines.get(0);
+    }
+
+    /**
+     * Insert the delay before the first instruction of a source line
+     * @param method the method
+     * @param line the line
+     */
+    public void injectBeforeLine(MethodNode method, int line) {
+        for (AbstractInsnNode node : method.instructions) {
+            if (node instanceof LineNumberNode lineNumber && lineNumber.line == line) {
+                // Skip labels, frames and line numbers, which are not instructions
+                AbstractInsnNode instruction = lineNumber.getNext();
+                while (instruction != null && instruction.getOpcode() < 0) {
+                    instruction = instruction.getNext();
+                }
+                if (instruction == null) {
+                    break;
+                }
+                method.instructions.insertBefore(instruction, createCall());
+                method.maxStack += 2;
+                return;
+            }
+        }
+        throw new NoSuitableStatementsInMethod("No instructions at line %d in method %s".formatted(line, method.name));
+    }
+}
@@ -0,0 +1,7 @@
+package it.univaq.disim.spencer.injectblackhole.exception;
+
+public class NoCandidateMethodsLeft extends RuntimeException {
+    public NoCandidateMethodsLeft(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,26 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+import java.time.Instant;
+
+/**
+ * Cost of a Blackhole.consumeCPU token on a given machine
+ * @param nsPerToken nanoseconds per token
+ * @param machine the machine the calibration was measured on
+ * @param measuredAt when the calibration was measured
+ */
+public record Calibration(double nsPerToken, String machine, Instant measuredAt) {
+
+    /**
+     * Translate a time into a number of tokens
+     * @param nanos the time in nanoseconds
+     * @return the number of tokens (at least 1)
+     */
+    public long toTokens(long nanos) {
+        return Math.max(1, Math.round(nanos / nsPerToken));
+    }
+
+    @Override
+    public String toString() {
+        return "%.4f ns/token on %s (measured at %s)".formatted(nsPerToken, machine, measuredAt);
+    }
+}
@@ -0,0 +1,121 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the cost of a Blackhole.consumeCPU token on the current machine, JMH-style
+ * (warm-up iterations, then measurement iterations of fixed duration), and caches it.
+ */
+public class Calibrator {
+
+    private static final Logger LOGGER = Logger.getLogger(Calibrator.class.getName());
+    private static final long TOKENS = 1 << 16;
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASUREMENT_ITERATIONS = 10;
+    private static final long ITERATION_NANOS = 100_000_000L;
+
+    private final Path cacheFile;
+
+    public Calibrator(Path cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Identify the current machine: calibrations are only valid on the same hardware and JVM
+     * @return the machine identifier
+     */
+    public static String currentMachine() {
+        String host = System.getenv().getOrDefault("HOSTNAME", "localhost");
+        return "%s/%s/%s/%d cpus/%s %s".formatted(
+            host,
+            System.getProperty("os.name"),
+            System.getProperty("os.arch"),
+            Runtime.getRuntime().availableProcessors(),
+            System.getProperty("java.vm.name"),
+            System.getProperty("java.vm.version"));
+    }
+
+    /**
+     * Get the calibration of the current machine, measuring it if not cached
+     * @param recalibrate measure again even if cached
+     * @return the calibration
+     */
+    public Calibration getCalibration(boolean recalibrate) {
+        String machine = currentMachine();
+        Properties cache = load();
+        String cached = cache.getProperty(machine + ".nsPerToken");
+        if (cached != null && !recalibrate) {
+            return new Calibration(Double.parseDouble(cached), machine,
+                Instant.parse(cache.getProperty(machine + ".measuredAt")));
+        }
+
+        Calibration calibration = measure(machine);
+        cache.setProperty(machine + ".nsPerToken", Double.toString(calibration.nsPerToken()));
+        cache.setProperty(machine + ".measuredAt", calibration.measuredAt().toString());
+        store(cache);
+        return calibration;
+    }
+
+    private static Calibration measure(String machine) {
+        LOGGER.info("Calibrating Blackhole.consumeCPU on " + machine);
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration();
+        }
+        double[] samples = new double[MEASUREMENT_ITERATIONS];
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            samples[i] = iteration();
+        }
+
+        // The median is robust to the occasional descheduling
+        Arrays.sort(samples);
+        double median = samples[MEASUREMENT_ITERATIONS / 2];
+        return new Calibration(median, machine, Instant.now());
+    }
+
+    private static double iteration() {
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            Blackhole.consumeCPU(TOKENS);
+            operations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        return (double) elapsed / (operations * TOKENS);
+    }
+
+    private Properties load() {
+        Properties cache = new Properties();
+        if (Files.exists(cacheFile)) {
+            try (Reader reader = Files.newBufferedReader(cacheFile)) {
+                cache.load(reader);
+            } catch (IOException e) {
+                LOGGER.warning("Ignoring unreadable calibration cache: " + e.getMessage());
+            }
+        }
+        return cache;
+    }
+
+    private void store(Properties cache) {
+        try {
+            if (cacheFile.getParent() != null) {
+                Files.createDirectories(cacheFile.getParent());
+            }
+            try (Writer writer = Files.newBufferedWriter(cacheFile)) {
+                cache.store(writer, "inject-blackhole calibrations");
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Error storing the calibration cache: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+/**
+ * Compile a single compilation unit in memory, to reject an injection that breaks it
+ * (e.g., an unreachable statement after a return) before it is written.
+ * The modified source is compared with the original one: only the errors that the injection
+ * adds count. Without the classpath of the target, the missing symbols are not errors.
+ */
+public class CompilationCheck {
+
+    // Diagnostics of the symbols that cannot be resolved without the classpath
+    private static final Set<String> MISSING_SYMBOLS = Set.of(
+        "compiler.err.cant.resolve",
+        "compiler.err.cant.resolve.args",
+        "compiler.err.cant.resolve.location",
+        "compiler.err.cant.resolve.location.args",
+        "compiler.err.doesnt.exist",
+        "compiler.err.cant.access");
+
+    private final JavaCompiler compiler;
+    private final JavaFileManager fileManager;
+    private final List<String> options = new ArrayList<>();
+    private final boolean tolerant;
+    // The errors of the last original source, which is the same for all the positions of a method
+    private String lastOriginal;
+    private Map<String, Integer> lastErrors;
+
+    /**
+     * @param classpath the classpath of the target library, or empty to tolerate the missing symbols
+     */
+    public CompilationCheck(List<Path> classpath) {
+        this.compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("No Java compiler available, the compilation check needs a JDK");
+        }
+        this.fileManager = new DiscardingFileManager(compiler.getStandardFileManager(null, Locale.ROOT, null));
+        this.tolerant = classpath.isEmpty();
+        // Keep going after the errors of missing symbols, up to the flow analysis (unreachable statements)
+        options.addAll(List.of("-proc:none", "-implicit:none", "-nowarn", "-XDshould-stop.ifError=FLOW"));
+        if (!tolerant) {
+            options.add("-classpath");
+            options.add(classpath.stream().map(Path::toString).collect(Collectors.joining(File.pathSeparator)));
+        }
+    }
+
+    /**
+     * Compile a compilation unit with and without a modification
+     * @param javaFile the file of the compilation unit, which is not read
+     * @param original the original source
+     * @param modified the modified source
+     * @return the errors added by the modification, empty if it compiles as well as the original
+     */
+    public synchronized List<String> newErrors(Path javaFile, String original, String modified) {
+        if (!original.equals(lastOriginal)) {
+            lastErrors = errors(javaFile, original);
+            lastOriginal = original;
+        }
+        List<String> added = new ArrayList<>();
+        for (Map.Entry<String, Integer> error : errors(javaFile, modified).entrySet()) {
+            for (int i = lastErrors.getOrDefault(error.getKey(), 0); i < error.getValue(); i++) {
+                added.add(error.getKey());
+            }
+        }
+        return added;
+    }
+
+    // The errors of a compilation unit, with their number of occurrences, without their position
+    private Map<String, Integer> errors(Path javaFile, String source) {
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        JavaFileObject unit = new SimpleJavaFileObject(
+                URI.create("string:///" + javaFile.getFileName()), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        compiler.getTask(null, fileManager, diagnostics, options, null, List.of(unit)).call();
+
+        Map<String, Integer> errors = new HashMap<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() != Diagnostic.Kind.ERROR || diagnostic.getSource() != unit
+                    || (tolerant && MISSING_SYMBOLS.contains(diagnostic.getCode()))) {
+                continue;
+            }
+            errors.merge(diagnostic.getCode() + ": " + diagnostic.getMessage(Locale.ROOT), 1, Integer::sum);
+        }
+        return errors;
+    }
+
+    // The class files are not needed
+    private static class DiscardingFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+
+        DiscardingFileManager(JavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
+                                                   FileObject sibling) {
+            return new SimpleJavaFileObject(URI.create("discard:///" + className.replace('.', '/') + kind.extension), kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    return OutputStream.nullOutputStream();
+                }
+            };
+        }
+    }
+}
@@ -1,38 +1,124 @@
 package it.univaq.disim.spencer.injectblackhole.injection;
 
-import org.openjdk.jmh.infra.Blackhole;
-
 import spoon.reflect.code.CtInvocation;
 import spoon.reflect.code.CtStatement;
-import spoon.reflect.code.CtTypeAccess;
 import spoon.reflect.declaration.CtMethod;
 import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtTypeReference;
 
 public class Delay {
 
-    private static final String BLACKHOLE_CONSUME_SIGNATURE = "void org.openjdk.jmh.infra.Blackhole#consumeCPU(long)";
+    private static final String RUNTIME_KEYWORD = DelayRuntime.CLASS_NAME + ".site";
     private long delay;
+    private DelayStyle style;
+    private Kernel kernel;
+    private Guard guard;
+    private Jitter jitter;
 
     public Delay(long delay) {
+        this(delay, DelayStyle.LITERAL, Kernel.CPU, Guard.ALWAYS, Jitter.NONE);
+    }
+
+    public Delay(long delay, DelayStyle style, Kernel kernel, Guard guard, Jitter jitter) {
         this.delay = delay;
+        this.style = style;
+        this.kernel = kernel;
+        this.guard = guard;
+        this.jitter = jitter;
+    }
+
+    public DelayStyle getStyle() {
+        return style;
+    }
+
+    public Kernel getKernel() {
+        return kernel;
+    }
+
+    public Guard getGuard() {
+        return guard;
+    }
+
+    public Jitter getJitter() {
+        return jitter;
     }
 
     /**
-     * Create the "Blackhole.consumeCPU(delay)" invocation
+     * Create the invocation of the delay, depending on the style
      * @param factory Spoon factory
+     * @param site the site ID in the runtime class (RUNTIME style only)
      * @return the invocation
      */
-    public CtInvocation<Object> createBlackholeConsume(Factory factory) {
-        CtTypeAccess<Blackhole> typeAccess = factory.Code()
-                .createTypeAccess(factory.Type().createReference(Blackhole.class));
-    
+    public CtInvocation<Object> createInvocation(Factory factory, int site) {
+        return style == DelayStyle.RUNTIME ? createRuntimeCall(factory, site) : createKernelCall(factory);
+    }
+
+    /**
+     * Create the source of the delay statement, depending on the style
+     * @param site the site ID in the runtime class (RUNTIME style only)
+     * @return the statement
+     */
+    public String createSource(int site) {
+        return style == DelayStyle.RUNTIME ? createRuntimeCallSource(site) : createKernelCallSource();
+    }
+
+    /**
+     * Create the "InjectBlackholeRuntime.siteN()" invocation
+     * @param factory Spoon factory
+     * @param site the site ID
+     * @return the invocation
+     */
+    public CtInvocation<Object> createRuntimeCall(Factory factory, int site) {
+        CtTypeReference<Object> runtime = factory.Type().createReference(DelayRuntime.QUALIFIED_NAME);
         return factory.Code().createInvocation(
-                typeAccess,
-                factory.Executable().createReference(BLACKHOLE_CONSUME_SIGNATURE),
+                factory.Code().createTypeAccess(runtime),
+                factory.Executable().createReference("void %s#site%d()".formatted(DelayRuntime.QUALIFIED_NAME, site))
+        );
+    }
+
+    /**
+     * Create the source of the "InjectBlackholeRuntime.siteN();" statement, as Spoon would print it
+     * @param site the site ID
+     * @return the statement
+     */
+    public String createRuntimeCallSource(int site) {
+        return "%s.site%d();".formatted(DelayRuntime.QUALIFIED_NAME, site);
+    }
+
+    /**
+     * Create the invocation of the kernel, e.g., "Blackhole.consumeCPU(delay)"
+     * @param factory Spoon factory
+     * @return the invocation
+     */
+    public CtInvocation<Object> createKernelCall(Factory factory) {
+        CtTypeReference<Object> owner = factory.Type().createReference(kernel.getOwner());
+        return factory.Code().createInvocation(
+                factory.Code().createTypeAccess(owner),
+                factory.Executable().createReference(kernel.getSignature()),
                 factory.Code().createLiteral(delay)
         );
     }
 
+    /**
+     * Create the source of the kernel statement, e.g., "Blackhole.consumeCPU(delay);", as Spoon would print it
+     * @return the statement
+     */
+    public String createKernelCallSource() {
+        return "%s.%s(%dL);".formatted(kernel.getOwner(), kernel.getMethodName(), delay);
+    }
+
+    public long getDelay() {
+        return delay;
+    }
+
+    /**
+     * Get the keyword identifying the lines added by our injections
+     * @return the keyword
+     */
+    public String getKeyword() {
+        return style == DelayStyle.RUNTIME ? RUNTIME_KEYWORD : kernel.getKeyword();
+    }
+
     /**
      * Inject an invocation at the beginning of a method
      * @param method the method to inject the invocation
@@ -0,0 +1,190 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The runtime class generated in a source root of the target library, which hosts the
+ * delays switchable at runtime. Each injected delay is a site, with its own ID and
+ * static final delay; the generated file itself is the registry of the sites. The sites are
+ * changed in memory, and the file is only written by save(), e.g., once per batch of injections.
+ */
+public class DelayRuntime {
+
+    public static final String PACKAGE_NAME = "it.univaq.disim.spencer.injectblackhole.runtime";
+    public static final String CLASS_NAME = "InjectBlackholeRuntime";
+    public static final String QUALIFIED_NAME = PACKAGE_NAME + "." + CLASS_NAME;
+    private static final String TEMPLATE = "/runtime/InjectBlackholeRuntime.java.template";
+    // The guard and table lines are optional, for the files generated before they existed
+    private static final Pattern SITE = Pattern.compile(
+        "    // (\\w+) in (.*)\\R    private static final long SITE_(\\d+) = tokens\\(\\d+, (\\d+)L\\);"
+            + "(?:\\R    private static final double SITE_\\d+_PROBABILITY = probability\\(\\d+, ([^)]+)\\);"
+            + "\\R    private static final long SITE_\\d+_EVERY = every\\(\\d+, (\\d+)L\\);)?"
+            + "(?:\\R    private static final long\\[\\] SITE_\\d+_TABLE = table\\(\\d+, SITE_\\d+, \"(\\w+)\", ([^,]+), (-?\\d+)L\\);)?");
+
+    private record Site(String method, long tokens, Kernel kernel, Guard guard, Jitter jitter) {
+    }
+
+    private final Path runtimeFile;
+    private final TreeMap<Integer, Site> sites = new TreeMap<>();
+    // Whether the sites changed since the last save
+    private boolean dirty;
+
+    /**
+     * @param sourceRoot the source root of the target library hosting the runtime class
+     */
+    public DelayRuntime(Path sourceRoot) {
+        this.runtimeFile = sourceRoot.resolve(PACKAGE_NAME.replace('.', '/')).resolve(CLASS_NAME + ".java");
+        if (Files.exists(runtimeFile)) {
+            try {
+                Matcher matcher = SITE.matcher(Files.readString(runtimeFile));
+                while (matcher.find()) {
+                    Guard guard = matcher.group(5) == null ? Guard.ALWAYS
+                        : new Guard(Double.parseDouble(matcher.group(5)), Long.parseLong(matcher.group(6)));
+                    Jitter jitter = matcher.group(7) == null ? Jitter.NONE
+                        : new Jitter(Distribution.valueOf(matcher.group(7).toUpperCase()), Double.parseDouble(matcher.group(8)),
+                                     Long.parseLong(matcher.group(9)));
+                    sites.put(Integer.parseInt(matcher.group(3)), new Site(matcher.group(2), Long.parseLong(matcher.group(4)),
+                                                                       Kernel.valueOf(matcher.group(1).toUpperCase()), guard, jitter));
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Error reading " + runtimeFile, e);
+            }
+        }
+    }
+
+    public Path getRuntimeFile() {
+        return runtimeFile;
+    }
+
+    /**
+     * Have the runtime class written by the next save, e.g., for the kernels it implements
+     */
+    public synchronized void generate() {
+        if (!Files.exists(runtimeFile)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Write the runtime class, if its sites changed since the last save
+     */
+    public synchronized void save() {
+        if (dirty) {
+            write();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Add a site to the runtime class
+     * @param fqMethodName the method hosting the site
+     * @param amount the default delay of the site, in the unit of the kernel
+     * @param kernel the kernel of the site
+     * @return the site ID
+     */
+    public int register(String fqMethodName, long amount, Kernel kernel) {
+        return register(fqMethodName, amount, kernel, Guard.ALWAYS, Jitter.NONE);
+    }
+
+    /**
+     * Add a site to the runtime class
+     * @param fqMethodName the method hosting the site
+     * @param amount the default delay of the site, in the unit of the kernel
+     * @param kernel the kernel of the site
+     * @param guard the default guard of the site
+     * @param jitter the default distribution of the delays of the site, around amount
+     * @return the site ID
+     */
+    public synchronized int register(String fqMethodName, long amount, Kernel kernel, Guard guard, Jitter jitter) {
+        int id = sites.isEmpty() ? 0 : sites.lastKey() + 1;
+        sites.put(id, new Site(fqMethodName, amount, kernel, guard, jitter));
+        dirty = true;
+        return id;
+    }
+
+    /**
+     * Remove a site from the runtime class, e.g., when its injection failed
+     * @param id the site ID
+     */
+    public synchronized void unregister(int id) {
+        if (sites.remove(id) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Remove the sites of some methods, e.g., when their file was restored
+     * @param fqMethodNames the methods hosting the sites
+     */
+    public synchronized void unregisterMethods(Collection<String> fqMethodNames) {
+        if (sites.values().removeIf(site -> fqMethodNames.contains(site.method()))) {
+            dirty = true;
+        }
+    }
+
+    private void write() {
+        StringBuilder code = new StringBuilder();
+        for (Map.Entry<Integer, Site> site : sites.entrySet()) {
+            int id = site.getKey();
+            String kernel = site.getValue().kernel().toString().toLowerCase();
+            Guard guard = site.getValue().guard();
+            Jitter jitter = site.getValue().jitter();
+            code.append("""
+
+                    // %1$s in %2$s
+                    private static final long SITE_%3$d = tokens(%3$d, %4$dL);
+                    private static final double SITE_%3$d_PROBABILITY = probability(%3$d, %5$s);
+                    private static final long SITE_%3$d_EVERY = every(%3$d, %6$dL);
+                    private static final long[] SITE_%3$d_TABLE = table(%3$d, SITE_%3$d, "%7$s", %8$s, %9$dL);
+
+                    public static void site%3$d() {
+                        if (ENABLED && SITE_%3$d > 0 && fires(%3$d, SITE_%3$d_PROBABILITY, SITE_%3$d_EVERY)) {
+                            long start = TIMED ? System.nanoTime() : 0L;
+                            %1$s(SITE_%3$d_TABLE == null ? SITE_%3$d : draw(%3$d, SITE_%3$d_TABLE));
+                            if (STATS) {
+                                Stats.record(%3$d, start);
+                            }
+                        }
+                    }
+                """.formatted(kernel, site.getValue().method(), id, site.getValue().tokens(),
+                              Double.toString(guard.probability()), guard.every(),
+                              jitter.distribution().toString().toLowerCase(), Double.toString(jitter.shape()), jitter.seed()));
+        }
+
+        // The tables of the statistics, indexed by site ID (removed sites are null)
+        int size = sites.isEmpty() ? 0 : sites.lastKey() + 1;
+        List<String> methods = new ArrayList<>();
+        List<String> kernels = new ArrayList<>();
+        List<String> tokens = new ArrayList<>();
+        for (int id = 0; id < size; id++) {
+            Site site = sites.get(id);
+            methods.add(site == null ? "null" : "\"" + site.method() + "\"");
+            kernels.add(site == null ? "null" : "\"" + site.kernel().toString().toLowerCase() + "\"");
+            tokens.add(site == null ? "0L" : "SITE_" + id);
+        }
+        code.append("""
+
+                private static final String[] SITE_METHODS = { %s };
+                private static final String[] SITE_KERNELS = { %s };
+                private static final long[] SITE_TOKENS = { %s };
+            """.formatted(String.join(", ", methods), String.join(", ", kernels), String.join(", ", tokens)));
+        try (InputStream template = DelayRuntime.class.getResourceAsStream(TEMPLATE)) {
+            String source = new String(template.readAllBytes(), StandardCharsets.UTF_8).replace("%SITES%", code);
+            Files.createDirectories(runtimeFile.getParent());
+            Files.writeString(runtimeFile, source);
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing " + runtimeFile, e);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+/**
+ * How the delay is written in the target library
+ */
+public enum DelayStyle {
+    // The number of tokens is a literal of the injected statement
+    LITERAL,
+    // The injected statement calls a generated runtime class, which reads the delay at startup
+    RUNTIME
+}
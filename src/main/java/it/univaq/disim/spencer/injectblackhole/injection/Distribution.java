@@ -0,0 +1,45 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+/**
+ * The distribution of the delay of each call, around the mean given at injection time.
+ * The delays are drawn by the generated runtime class, with one shape parameter per distribution.
+ */
+public enum Distribution {
+    // The same delay on every call
+    CONSTANT(0),
+    // Uniform in [mean * (1 - shape), mean * (1 + shape)], shape in [0, 1]
+    UNIFORM(1),
+    // Exponential, e.g., waits for independent events (no shape)
+    EXPONENTIAL(1),
+    // Log-normal with the given sigma, e.g., cache- or GC-induced slowdowns
+    LOGNORMAL(1),
+    // Pareto with the given alpha (> 1): rare, very long delays
+    PARETO(2);
+
+    private final double defaultShape;
+
+    Distribution(double defaultShape) {
+        this.defaultShape = defaultShape;
+    }
+
+    public double getDefaultShape() {
+        return defaultShape;
+    }
+
+    /**
+     * Check the shape parameter of the distribution
+     * @param shape the shape parameter
+     * @throws IllegalArgumentException if the distribution is not defined, or has no finite mean, for the shape
+     */
+    public void checkShape(double shape) {
+        boolean valid = switch (this) {
+            case CONSTANT, EXPONENTIAL -> true;
+            case UNIFORM -> shape >= 0 && shape <= 1;
+            case LOGNORMAL -> shape > 0;
+            case PARETO -> shape > 1;
+        };
+        if (!valid) {
+            throw new IllegalArgumentException("Invalid shape for the %s distribution: %s".formatted(this, shape));
+        }
+    }
+}
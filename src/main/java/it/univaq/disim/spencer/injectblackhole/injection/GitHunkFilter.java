@@ -3,11 +3,22 @@ package it.univaq.disim.spencer.injectblackhole.injection;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
-public class GitHunkFilter {
+/**
+ * Hunk filter running git: diffs the modified files, checks them out and applies the filtered patch.
+ * The public operations are synchronized, so that the git commands of concurrent injections, e.g.,
+ * of the serve mode, do not race on the index lock of the repository.
+ */
+public class GitHunkFilter implements HunkFilter {
     private Path gitRepositoryPath;
 
     public GitHunkFilter(Path gitRepositoryPath) {
@@ -25,25 +36,36 @@ public class GitHunkFilter {
         return findGitDir(startingPath.getParent());
     }
 
-    private BufferedReader runGitCommand(String... command) throws IOException, InterruptedException {
+    private String runGitCommand(String... command) throws IOException, InterruptedException {
         ProcessBuilder processBuilder = new ProcessBuilder(command);
         processBuilder.directory(gitRepositoryPath.toFile());
         processBuilder.redirectErrorStream(true);
         Process process = processBuilder.start();
-        process.waitFor();
-        return new BufferedReader(new InputStreamReader(process.getInputStream()));
+        // Drain the output before waiting, otherwise a large diff fills the pipe and git blocks forever
+        String output;
+        try (InputStream stdout = process.getInputStream()) {
+            output = new String(stdout.readAllBytes());
+        }
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new RuntimeException("%s failed with exit code %d: %s".formatted(
+                String.join(" ", List.of(command).subList(0, 2)), exitCode, output.strip()));
+        }
+        return output;
     }
 
-    public String gitDiffFile(Path filePath) throws IOException, InterruptedException {
+    public synchronized String gitDiffFile(Path filePath) throws IOException, InterruptedException {
         // Run 'git diff <file>' command
-        try (BufferedReader reader = runGitCommand("git", "diff", filePath.toString())) {
-            StringBuilder diff = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                diff.append(line).append("\n");
-            }
-            return diff.toString();
+        StringBuilder diff = new StringBuilder();
+        for (String line : runGitCommand("git", "diff", filePath.toString()).lines().toList()) {
+            diff.append(line).append("\n");
         }
+        return diff.toString();
+    }
+
+    @Override
+    public void snapshot(Path filePath) {
+        // Nothing to do, git already knows the original content
     }
 
     static String fixPatch(String patch, String keyword) {
@@ -54,6 +76,16 @@ public class GitHunkFilter {
         boolean keepThisHunk = false;
         StringBuilder currentHunk = new StringBuilder();
         for (String line : patch.lines().toList()) {
+            // Detect the start of a new file, in patches of several files
+            if (line.startsWith("diff --git ")) {
+                if (keepThisHunk) {
+                    filteredPatch.append(currentHunk);
+                }
+                currentHunk = new StringBuilder();
+                withinHunk = false;
+                keepThisHunk = false;
+            }
+
             // Detect the start of a new hunk
             if (line.startsWith("@@ ")) {
                 if (keepThisHunk) {
@@ -93,9 +125,10 @@ public class GitHunkFilter {
         return fixPatch(patch, keyword);
     }
 
-    public void discardChanges(Path filePath) throws IOException, InterruptedException {
+    @Override
+    public synchronized void discardChanges(Path filePath) throws IOException, InterruptedException {
         // Run 'git checkout -- <file>' to discard modifications
-        runGitCommand("git", "checkout", "--", filePath.toString()).close();
+        runGitCommand("git", "checkout", "--", filePath.toString());
     }
 
     private void applyPatch(String patchContent) throws IOException, InterruptedException, RuntimeException {
@@ -111,23 +144,25 @@ public class GitHunkFilter {
             writer.flush();
         }
 
-        // Wait for the process to finish
+        // Read the output before waiting for the process to finish
+        List<String> output;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            output = reader.lines().toList();
+        }
         int exitCode = process.waitFor();
         if (exitCode == 0) {
             return;
         }
-        
+
         // In case of error, print the output of the process and throw an exception
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                System.err.println(line);
-            }
+        for (String line : output) {
+            System.err.println(line);
         }
         throw new RuntimeException("git apply failed with exit code " + exitCode);
     }
 
-    public void applyFilteredPatch(Path filePath, String keyword) throws IOException, InterruptedException {
+    @Override
+    public synchronized void applyFilteredPatch(Path filePath, String keyword) throws IOException, InterruptedException {
         Path relativePath = gitRepositoryPath.relativize(filePath);
         String patch = getFilteredPatch(relativePath, keyword);
 
@@ -147,4 +182,80 @@ public class GitHunkFilter {
 
         applyPatch(patch);
     }
+
+    @Override
+    public synchronized Map<Path, RuntimeException> applyFilteredPatches(List<Path> filePaths, String keyword)
+            throws IOException, InterruptedException {
+        // One diff, one checkout and one apply for all the files, instead of three processes per file
+        Map<String, Path> files = new LinkedHashMap<>();
+        for (Path filePath : filePaths) {
+            files.put(gitRepositoryPath.relativize(filePath.toAbsolutePath().normalize()).toString().replace('\\', '/'),
+                      filePath);
+        }
+        Map<String, String> patches = splitPatch(runGitCommand(gitCommand("diff", files.keySet())));
+
+        Map<Path, RuntimeException> failures = new LinkedHashMap<>();
+        StringBuilder combinedPatch = new StringBuilder();
+        for (Map.Entry<String, Path> file : files.entrySet()) {
+            String patch = fixPatch(patches.getOrDefault(file.getKey(), ""), keyword);
+            if (!patch.contains("\n@@ ")) {
+                failures.put(file.getValue(), new RuntimeException("Patch is empty (no detected modifications)"));
+            } else if (patch.lines().anyMatch(line -> line.startsWith("-") && !line.startsWith("---"))) {
+                failures.put(file.getValue(), new RuntimeException("Patch contains removals"));
+            } else {
+                combinedPatch.append(patch);
+            }
+        }
+
+        runGitCommand(gitCommand("checkout", files.keySet()));
+        if (!combinedPatch.isEmpty()) {
+            try {
+                applyPatch(combinedPatch.toString());
+            } catch (RuntimeException e) {
+                // One bad hunk must not fail the other files: apply the patch of each file alone
+                for (Map.Entry<String, Path> file : files.entrySet()) {
+                    if (failures.containsKey(file.getValue())) {
+                        continue;
+                    }
+                    try {
+                        applyPatch(fixPatch(patches.get(file.getKey()), keyword));
+                    } catch (RuntimeException fileError) {
+                        failures.put(file.getValue(), fileError);
+                    }
+                }
+            }
+        }
+        return failures;
+    }
+
+    private static String[] gitCommand(String command, Collection<String> files) {
+        List<String> arguments = new ArrayList<>(List.of("git", command, "--"));
+        arguments.addAll(files);
+        return arguments.toArray(String[]::new);
+    }
+
+    /**
+     * Split a patch of several files
+     * @param patch the patch
+     * @return the patch of each file, by path relative to the repository
+     */
+    static Map<String, String> splitPatch(String patch) {
+        Map<String, String> patches = new LinkedHashMap<>();
+        String file = null;
+        StringBuilder current = new StringBuilder();
+        for (String line : patch.lines().toList()) {
+            if (line.startsWith("diff --git ")) {
+                if (file != null) {
+                    patches.put(file, current.toString());
+                }
+                file = line.substring(line.lastIndexOf(" b/") + 3);
+                current = new StringBuilder();
+            }
+            current.append(line).append("\n");
+        }
+        if (file != null) {
+            patches.put(file, current.toString());
+        }
+        return patches;
+    }
 }
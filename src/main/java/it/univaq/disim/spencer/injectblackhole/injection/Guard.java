@@ -0,0 +1,29 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+/**
+ * When an injected delay fires: on a fraction of the calls, and/or on every N-th call of its
+ * site by the same thread, to add tail latency rather than shifting the mean
+ * @param probability the probability that a call fires the delay, in (0, 1]
+ * @param every only every N-th call (of those drawn) fires the delay, at least 1
+ */
+public record Guard(double probability, long every) {
+
+    public static final Guard ALWAYS = new Guard(1.0, 1);
+
+    public Guard {
+        if (!(probability > 0 && probability <= 1)) {
+            throw new IllegalArgumentException("The fire probability must be in (0, 1]: " + probability);
+        }
+        if (every < 1) {
+            throw new IllegalArgumentException("The fire period must be at least 1: " + every);
+        }
+    }
+
+    /**
+     * Whether every call fires the delay
+     * @return true if the guard never skips a call
+     */
+    public boolean isAlways() {
+        return probability == 1.0 && every == 1;
+    }
+}
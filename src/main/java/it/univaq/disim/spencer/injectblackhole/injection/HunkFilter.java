@@ -0,0 +1,61 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps only the modifications of a file that contain our invocation,
+ * discarding whatever else the pretty-printer changed.
+ */
+public interface HunkFilter {
+
+    /**
+     * Record the original content of a file, before it gets modified
+     * @param filePath the file
+     */
+    void snapshot(Path filePath) throws IOException;
+
+    /**
+     * Restore the content of a file before its last modification
+     * @param filePath the file
+     */
+    void discardChanges(Path filePath) throws IOException, InterruptedException;
+
+    /**
+     * Forget what is known of a file, e.g., when it was restored by someone else
+     * @param filePath the file
+     */
+    default void forget(Path filePath) {
+    }
+
+    /**
+     * Restore the original content of a file, then re-apply only the hunks
+     * adding a line that contains the keyword
+     * @param filePath the file
+     * @param keyword the keyword identifying our modifications
+     */
+    void applyFilteredPatch(Path filePath, String keyword) throws IOException, InterruptedException;
+
+    /**
+     * Apply the filtered patches of several files at once, e.g., all the files of a batch
+     * @param filePaths the files
+     * @param keyword the keyword identifying our modifications
+     * @return the files whose patch could not be applied, which are restored, with the error
+     */
+    default Map<Path, RuntimeException> applyFilteredPatches(List<Path> filePaths, String keyword)
+            throws IOException, InterruptedException {
+        Map<Path, RuntimeException> failures = new LinkedHashMap<>();
+        for (Path filePath : filePaths) {
+            try {
+                applyFilteredPatch(filePath, keyword);
+            } catch (RuntimeException e) {
+                discardChanges(filePath);
+                failures.put(filePath, e);
+            }
+        }
+        return failures;
+    }
+}
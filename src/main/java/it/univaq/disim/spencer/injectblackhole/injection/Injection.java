@@ -0,0 +1,11 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+/**
+ * A delay injected in the target library
+ * @param method the fully qualified name of the method hosting the delay
+ * @param file the Java file of the method
+ * @param line the line of the statement the delay was inserted before (of the method body, at the beginning)
+ * @param tokens the delay, in the unit of its kernel, e.g., Blackhole.consumeCPU tokens, bytes, steps or nanoseconds
+ */
+public record Injection(String method, String file, int line, long tokens) {
+}
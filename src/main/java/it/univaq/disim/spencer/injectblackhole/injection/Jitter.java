@@ -0,0 +1,35 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+/**
+ * How the delay of a site varies from call to call. The runtime class precomputes a table of
+ * delays from the seed, so that the same seed gives the same sequence of delays on every thread.
+ * @param distribution the distribution of the delays
+ * @param shape the shape parameter of the distribution
+ * @param seed the seed of the table
+ */
+public record Jitter(Distribution distribution, double shape, long seed) {
+
+    public static final Jitter NONE = new Jitter(Distribution.CONSTANT, 0, 0);
+
+    public Jitter {
+        distribution.checkShape(shape);
+    }
+
+    /**
+     * Create a jitter with the default shape of the distribution
+     * @param distribution the distribution of the delays
+     * @param seed the seed of the table
+     * @return the jitter
+     */
+    public static Jitter of(Distribution distribution, long seed) {
+        return new Jitter(distribution, distribution.getDefaultShape(), seed);
+    }
+
+    public Jitter withSeed(long seed) {
+        return new Jitter(distribution, shape, seed);
+    }
+
+    public boolean isConstant() {
+        return distribution == Distribution.CONSTANT;
+    }
+}
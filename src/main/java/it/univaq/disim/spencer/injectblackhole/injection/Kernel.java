@@ -0,0 +1,75 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+/**
+ * The code executed by an injected delay, i.e., the kind of slowdown it simulates.
+ * The amount of the delay is in the unit of the kernel.
+ */
+public enum Kernel {
+    // Busy CPU, in Blackhole.consumeCPU tokens
+    CPU("org.openjdk.jmh.infra.Blackhole", "consumeCPU", true),
+    // Short-lived allocations driving the garbage collector, in bytes
+    ALLOC(DelayRuntime.QUALIFIED_NAME, "alloc", false),
+    // Cache-unfriendly random walk through a large buffer, in steps
+    MEMORY(DelayRuntime.QUALIFIED_NAME, "memory", false),
+    // Busy CPU while holding a lock shared by all the sites, in Blackhole.consumeCPU tokens
+    LOCK(DelayRuntime.QUALIFIED_NAME, "lock", true),
+    // Blocking wait via LockSupport.parkNanos, in nanoseconds
+    PARK("java.util.concurrent.locks.LockSupport", "parkNanos", true),
+    // Synchronous writes to a temporary file, in bytes
+    IO(DelayRuntime.QUALIFIED_NAME, "io", false);
+
+    private final String owner;
+    private final String methodName;
+    private final boolean timed;
+
+    Kernel(String owner, String methodName, boolean timed) {
+        this.owner = owner;
+        this.methodName = methodName;
+        this.timed = timed;
+    }
+
+    /**
+     * Get the fully qualified name of the class implementing the kernel
+     * @return the class name
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    /**
+     * Get the signature of the kernel method, as understood by Spoon
+     * @return the signature
+     */
+    public String getSignature() {
+        return "void %s#%s(long)".formatted(owner, methodName);
+    }
+
+    /**
+     * Get the keyword identifying the lines that invoke the kernel
+     * @return the keyword
+     */
+    public String getKeyword() {
+        return owner.substring(owner.lastIndexOf('.') + 1) + "." + methodName;
+    }
+
+    /**
+     * Whether the kernel is implemented by the generated runtime class
+     * @return true if the runtime class must be generated in the target library
+     */
+    public boolean needsRuntime() {
+        return owner.equals(DelayRuntime.QUALIFIED_NAME);
+    }
+
+    /**
+     * Whether the amount of the kernel is a time (tokens or nanoseconds), so that it can be
+     * given as a duration
+     * @return true if the kernel is time-based
+     */
+    public boolean isTimed() {
+        return timed;
+    }
+}
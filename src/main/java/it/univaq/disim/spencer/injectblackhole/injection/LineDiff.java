@@ -0,0 +1,218 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Line-based diff (Myers' algorithm), grouping the changes in hunks like "git diff" does.
+ */
+public class LineDiff {
+
+    public enum Type {
+        EQUAL,
+        DELETE,
+        INSERT
+    }
+
+    public record Edit(Type type, String line) {
+    }
+
+    /**
+     * A run of edits, with changes no more than 2 * context lines apart.
+     * Lines are 0-based offsets in the original and modified texts.
+     */
+    public record Hunk(int originalStart, int modifiedStart, List<Edit> edits) {
+
+        public boolean hasDeletions() {
+            return edits.stream().anyMatch(edit -> edit.type() == Type.DELETE);
+        }
+
+        public boolean addsLineContaining(String keyword) {
+            return edits.stream().anyMatch(edit -> edit.type() == Type.INSERT && edit.line().contains(keyword));
+        }
+    }
+
+    private LineDiff() {
+    }
+
+    /**
+     * Split a text in lines, keeping the line terminators
+     * @param text the text
+     * @return List of lines
+     */
+    public static List<String> lines(String text) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                lines.add(text.substring(start, i + 1));
+                start = i + 1;
+            }
+        }
+        if (start < text.length()) {
+            lines.add(text.substring(start));
+        }
+        return lines;
+    }
+
+    /**
+     * Compute the shortest edit script turning the original lines into the modified ones
+     * @param original the original lines
+     * @param modified the modified lines
+     * @return List of edits
+     */
+    public static List<Edit> diff(List<String> original, List<String> modified) {
+        // Strip the common prefix and suffix, which are usually most of the file
+        int prefix = 0;
+        while (prefix < original.size() && prefix < modified.size()
+                && original.get(prefix).equals(modified.get(prefix))) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < original.size() - prefix && suffix < modified.size() - prefix
+                && original.get(original.size() - 1 - suffix).equals(modified.get(modified.size() - 1 - suffix))) {
+            suffix++;
+        }
+
+        List<Edit> edits = new ArrayList<>();
+        for (int i = 0; i < prefix; i++) {
+            edits.add(new Edit(Type.EQUAL, original.get(i)));
+        }
+        edits.addAll(myers(original.subList(prefix, original.size() - suffix),
+                           modified.subList(prefix, modified.size() - suffix)));
+        for (int i = original.size() - suffix; i < original.size(); i++) {
+            edits.add(new Edit(Type.EQUAL, original.get(i)));
+        }
+        return edits;
+    }
+
+    private static List<Edit> myers(List<String> a, List<String> b) {
+        int n = a.size();
+        int m = b.size();
+        int max = n + m;
+        int offset = max + 1;
+        int[] v = new int[2 * max + 3];
+        List<int[]> trace = new ArrayList<>();
+
+        // Forward pass, recording the furthest reaching paths of every step
+        int finalD = 0;
+        search:
+        for (int d = 0; d <= max; d++) {
+            trace.add(Arrays.copyOfRange(v, offset - d - 1, offset + d + 2));
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+                    x = v[offset + k + 1];
+                } else {
+                    x = v[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a.get(x).equals(b.get(y))) {
+                    x++;
+                    y++;
+                }
+                v[offset + k] = x;
+                if (x >= n && y >= m) {
+                    finalD = d;
+                    break search;
+                }
+            }
+        }
+
+        // Backtrack to recover the edit script
+        List<Edit> edits = new ArrayList<>();
+        int x = n;
+        int y = m;
+        for (int d = finalD; d > 0; d--) {
+            int[] previous = trace.get(d);
+            int k = x - y;
+            int prevK;
+            if (k == -d || (k != d && get(previous, d, k - 1) < get(previous, d, k + 1))) {
+                prevK = k + 1;
+            } else {
+                prevK = k - 1;
+            }
+            int prevX = get(previous, d, prevK);
+            int prevY = prevX - prevK;
+            while (x > prevX && y > prevY) {
+                edits.add(new Edit(Type.EQUAL, a.get(--x)));
+                y--;
+            }
+            if (x == prevX) {
+                edits.add(new Edit(Type.INSERT, b.get(--y)));
+            } else {
+                edits.add(new Edit(Type.DELETE, a.get(--x)));
+            }
+        }
+        while (x > 0 && y > 0) {
+            edits.add(new Edit(Type.EQUAL, a.get(--x)));
+            y--;
+        }
+        Collections.reverse(edits);
+        return edits;
+    }
+
+    private static int get(int[] snapshot, int d, int k) {
+        // Snapshots of step d cover the diagonals from -d - 1 to d + 1
+        return snapshot[k + d + 1];
+    }
+
+    /**
+     * Group the edits in hunks, merging the changes separated by at most 2 * context equal lines
+     * @param edits the edit script
+     * @param context the number of context lines
+     * @return List of hunks
+     */
+    public static List<Hunk> hunks(List<Edit> edits, int context) {
+        List<Hunk> hunks = new ArrayList<>();
+        int i = 0;
+        int originalLine = 0;
+        int modifiedLine = 0;
+        while (i < edits.size()) {
+            // Skip to the next change
+            if (edits.get(i).type() == Type.EQUAL) {
+                i++;
+                originalLine++;
+                modifiedLine++;
+                continue;
+            }
+
+            // Extend the hunk while the next change is close enough
+            int start = Math.max(0, i - context);
+            int leading = i - start;
+            int end = i;
+            int equalRun = 0;
+            int j = i;
+            while (j < edits.size()) {
+                if (edits.get(j).type() == Type.EQUAL) {
+                    equalRun++;
+                    if (equalRun > 2 * context) {
+                        break;
+                    }
+                } else {
+                    equalRun = 0;
+                    end = j;
+                }
+                j++;
+            }
+            int stop = Math.min(edits.size(), end + 1 + context);
+            List<Edit> hunkEdits = new ArrayList<>(edits.subList(start, stop));
+            hunks.add(new Hunk(originalLine - leading, modifiedLine - leading, hunkEdits));
+
+            // Move past the hunk, keeping track of the line numbers
+            for (int k = i; k < stop; k++) {
+                Type type = edits.get(k).type();
+                if (type != Type.INSERT) {
+                    originalLine++;
+                }
+                if (type != Type.DELETE) {
+                    modifiedLine++;
+                }
+            }
+            i = stop;
+        }
+        return hunks;
+    }
+}
@@ -0,0 +1,111 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-process hunk filter: keeps the last good bytes of every modified file in memory (the original
+ * content, then the content with the injections kept so far), computes the hunks itself and writes
+ * the filtered result back directly.
+ * It spawns no processes and does not require the target to be a git checkout.
+ */
+public class SnapshotHunkFilter implements HunkFilter {
+
+    private static final int CONTEXT_LINES = 3;
+    // Byte-transparent charset: the filter works whatever the encoding of the file is
+    private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+    private final Map<Path, byte[]> snapshots = new HashMap<>();
+
+    private static Path key(Path filePath) {
+        return filePath.toAbsolutePath().normalize();
+    }
+
+    @Override
+    public synchronized void snapshot(Path filePath) throws IOException {
+        // Keep the existing snapshot: it is the content with the injections kept so far,
+        // and the file may now be modified by the pretty-printer
+        Path key = key(filePath);
+        if (!snapshots.containsKey(key)) {
+            snapshots.put(key, Files.readAllBytes(key));
+        }
+    }
+
+    private synchronized byte[] getSnapshot(Path filePath) {
+        byte[] original = snapshots.get(key(filePath));
+        if (original == null) {
+            throw new IllegalStateException("No snapshot of " + filePath);
+        }
+        return original;
+    }
+
+    @Override
+    public synchronized void forget(Path filePath) {
+        snapshots.remove(key(filePath));
+    }
+
+    @Override
+    public void discardChanges(Path filePath) throws IOException {
+        Files.write(key(filePath), getSnapshot(filePath));
+    }
+
+    static String filter(String original, String modified, String keyword) {
+        List<LineDiff.Edit> edits = LineDiff.diff(LineDiff.lines(original), LineDiff.lines(modified));
+        List<LineDiff.Hunk> hunks = LineDiff.hunks(edits, CONTEXT_LINES);
+
+        // Only keep the hunks with additions that contain the keyword
+        List<LineDiff.Hunk> kept = hunks.stream()
+            .filter(hunk -> hunk.addsLineContaining(keyword))
+            .toList();
+        if (kept.isEmpty()) {
+            throw new RuntimeException("Patch is empty (no detected modifications)");
+        }
+        if (kept.stream().anyMatch(LineDiff.Hunk::hasDeletions)) {
+            throw new RuntimeException("Patch contains removals");
+        }
+
+        // Re-apply the kept hunks to the original lines
+        List<String> originalLines = LineDiff.lines(original);
+        StringBuilder result = new StringBuilder(modified.length());
+        int line = 0;
+        for (LineDiff.Hunk hunk : kept) {
+            while (line < hunk.originalStart()) {
+                result.append(originalLines.get(line++));
+            }
+            for (LineDiff.Edit edit : hunk.edits()) {
+                if (edit.type() == LineDiff.Type.INSERT) {
+                    result.append(edit.line());
+                } else {
+                    result.append(originalLines.get(line++));
+                }
+            }
+        }
+        while (line < originalLines.size()) {
+            result.append(originalLines.get(line++));
+        }
+        return result.toString();
+    }
+
+    @Override
+    public void applyFilteredPatch(Path filePath, String keyword) throws IOException {
+        String original = new String(getSnapshot(filePath), CHARSET);
+        String modified = Files.readString(key(filePath), CHARSET);
+        String filtered;
+        try {
+            filtered = filter(original, modified, keyword);
+        } catch (RuntimeException e) {
+            discardChanges(filePath);
+            throw e;
+        }
+        Files.writeString(key(filePath), filtered, CHARSET);
+        // A later failure restores this content, not the pristine one, which would drop the injections kept so far
+        synchronized (this) {
+            snapshots.put(key(filePath), filtered.getBytes(CHARSET));
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import spoon.reflect.code.CaseKind;
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.code.CtCase;
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.cu.SourcePosition;
+import spoon.reflect.declaration.CtCompilationUnit;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.factory.Factory;
+
+/**
+ * Injects statements by splicing their source text directly into the original file,
+ * at the positions computed by Spoon. The model is only used for the analysis and is
+ * never modified nor pretty-printed, so the rest of the file is left untouched.
+ */
+public class SourceSplicer {
+
+    private static final String INDENTATION = "    ";
+
+    private record Insertion(int offset, String text) {
+    }
+
+    // Insertions are relative to the original source of each compilation unit (shared by the threads
+    // injecting in different files, hence the synchronized methods)
+    private final Map<CtCompilationUnit, List<Insertion>> insertions = new IdentityHashMap<>();
+
+    /**
+     * Check whether a statement can be preceded by another one without changing the
+     * structure of the code (e.g., not the body of a brace-less if or of an arrow case)
+     * @param statement the statement
+     * @return true if we can insert before the statement
+     */
+    public boolean canInsertBefore(CtStatement statement) {
+        if (!statement.getPosition().isValidPosition()) {
+            return false;
+        }
+        CtElement parent = statement.getParent();
+        if (parent instanceof CtBlock<?> block) {
+            return !block.isImplicit();
+        }
+        if (parent instanceof CtCase<?> ctCase) {
+            return ctCase.getCaseKind() == CaseKind.COLON;
+        }
+        return false;
+    }
+
+    /**
+     * Insert a statement at the beginning of a method body
+     * @param method the method
+     * @param code the source of the statement
+     */
+    public synchronized void insertAtBegin(CtMethod<?> method, String code) {
+        CtBlock<?> body = method.getBody();
+        if (!body.getStatements().isEmpty() && canInsertBefore(body.getStatement(0))) {
+            insertBefore(body.getStatement(0), code);
+            return;
+        }
+
+        // Empty body (or first statement on the same line as the brace): insert after the brace
+        SourcePosition position = body.getPosition();
+        String source = position.getCompilationUnit().getOriginalSourceCode();
+        int brace = position.getSourceStart();
+        if (source.charAt(brace) != '{') {
+            throw new RuntimeException("Cannot find the body of method " + method.getSignature());
+        }
+        String indentation = indentationOf(source, brace) + INDENTATION;
+        add(position.getCompilationUnit(), new Insertion(brace + 1, lineSeparator(source) + indentation + code));
+    }
+
+    /**
+     * Insert a statement before another one
+     * @param statement the statement that will follow our statement
+     * @param code the source of the statement
+     */
+    public synchronized void insertBefore(CtStatement statement, String code) {
+        if (!canInsertBefore(statement)) {
+            throw new RuntimeException("Cannot insert before statement at " + statement.getPosition());
+        }
+        SourcePosition position = statement.getPosition();
+        String source = position.getCompilationUnit().getOriginalSourceCode();
+        int start = position.getSourceStart();
+        int lineStart = lineStart(source, start);
+        String prefix = source.substring(lineStart, start);
+        if (prefix.isBlank()) {
+            // The statement starts its own line: add a new line with the same indentation
+            add(position.getCompilationUnit(), new Insertion(lineStart, prefix + code + lineSeparator(source)));
+        } else {
+            add(position.getCompilationUnit(), new Insertion(start, code + " "));
+        }
+    }
+
+    private void add(CtCompilationUnit unit, Insertion insertion) {
+        insertions.computeIfAbsent(unit, k -> new ArrayList<>()).add(insertion);
+    }
+
+    /**
+     * Drop the last insertion in the compilation unit of an element
+     * @param element any element of the compilation unit
+     */
+    public synchronized void undoLast(CtElement element) {
+        List<Insertion> unitInsertions = insertions.get(element.getPosition().getCompilationUnit());
+        if (unitInsertions != null && !unitInsertions.isEmpty()) {
+            unitInsertions.remove(unitInsertions.size() - 1);
+        }
+    }
+
+    /**
+     * Forget the insertions in the compilation units of a model that is discarded:
+     * they must be written already (the injector pins the models with insertions that
+     * are not written yet), and a new model of the files will include them
+     * @param factory the factory of the model
+     */
+    public synchronized void forget(Factory factory) {
+        insertions.keySet().removeIf(unit -> unit.getFactory() == factory);
+    }
+
+    /**
+     * Write the original source of the compilation unit of an element, with all our insertions
+     * @param element any element of the compilation unit
+     */
+    public synchronized void save(CtElement element) {
+        CtCompilationUnit unit = element.getPosition().getCompilationUnit();
+        String source = print(element);
+        Charset encoding = element.getFactory().getEnvironment().getEncoding();
+        try {
+            Files.writeString(unit.getFile().toPath(), source, encoding);
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing " + unit.getFile(), e);
+        }
+    }
+
+    /**
+     * Render the original source of the compilation unit of an element, with all our insertions
+     * @param element any element of the compilation unit
+     * @return the source
+     */
+    public synchronized String print(CtElement element) {
+        CtCompilationUnit unit = element.getPosition().getCompilationUnit();
+        return render(unit.getOriginalSourceCode(), insertions.getOrDefault(unit, List.of()));
+    }
+
+    private static String render(String source, List<Insertion> unitInsertions) {
+        // Stable sort: insertions at the same offset keep their order
+        List<Insertion> sorted = new ArrayList<>(unitInsertions);
+        sorted.sort(Comparator.comparingInt(Insertion::offset));
+        StringBuilder result = new StringBuilder(source.length() + 64 * sorted.size());
+        int last = 0;
+        for (Insertion insertion : sorted) {
+            result.append(source, last, insertion.offset()).append(insertion.text());
+            last = insertion.offset();
+        }
+        result.append(source, last, source.length());
+        return result.toString();
+    }
+
+    private static int lineStart(String source, int offset) {
+        return source.lastIndexOf('\n', offset - 1) + 1;
+    }
+
+    private static String indentationOf(String source, int offset) {
+        int start = lineStart(source, offset);
+        int end = start;
+        while (end < source.length() && (source.charAt(end) == ' ' || source.charAt(end) == '\t')) {
+            end++;
+        }
+        return source.substring(start, end);
+    }
+
+    private static String lineSeparator(String source) {
+        return source.contains("\r\n") ? "\r\n" : "\n";
+    }
+}
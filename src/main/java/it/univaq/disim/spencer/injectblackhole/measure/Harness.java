@@ -0,0 +1,274 @@
+package it.univaq.disim.spencer.injectblackhole.measure;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The benchmark of a method, run in a forked JVM whose classpath holds one version of the target:
+ * warm-up iterations, then measurement iterations of fixed duration, JMH-style. The results are
+ * consumed by a Blackhole, and every measurement iteration prints its average time per call.
+ * <p>
+ * The arguments are default values (0, false, "", empty arrays and collections, otherwise null).
+ * A method whose first call throws is not measured, since only its exception would be timed:
+ * the exception is reported instead. The later calls that throw are counted.
+ * <p>
+ * The method is called through a constant MethodHandle, which costs less than a reflective call.
+ * The cost that remains, e.g., spreading the arguments and boxing the result, is measured on an
+ * empty method of the same signature, called the same way, and reported after the samples: it
+ * weighs on both versions, so the relative slowdown is deflated by up to this overhead over the
+ * time per call of the method.
+ */
+public class Harness {
+
+    static final String SAMPLE = "sample ";
+    static final String EXCEPTIONS = "exceptions ";
+    static final String THROWS = "throws ";
+    static final String OVERHEAD = "overhead ";
+    // A batch of calls must last this long, so that the clock does not weigh on short methods
+    private static final long MIN_BATCH_NANOS = 10_000;
+
+    // The harness of the forked JVM, whose handles the benchmark calls
+    private static Harness benchmarked;
+
+    // The JIT compiles the calls through constant handles into direct calls, unlike the calls through
+    // the fields of an instance, which cost as much as reflective calls
+    private static final class Constants {
+        static final MethodHandle INVOKER = benchmarked.invoker;
+        static final MethodHandle EMPTY_INVOKER = benchmarked.emptyInvoker;
+    }
+
+    // The method, and an empty method of the same signature, as (Object[]) -> Object
+    private final MethodHandle invoker;
+    private final MethodHandle emptyInvoker;
+    private final Object[] arguments;
+    private final Blackhole blackhole = new Blackhole(
+        "Today's password is swordfish. I understand instantiating Blackholes directly is dangerous.");
+    private long exceptions;
+
+    public Harness(String fqMethodName) throws ReflectiveOperationException {
+        Method method = resolve(fqMethodName);
+        method.setAccessible(true);
+        this.arguments = defaultArguments(method.getParameterTypes());
+        MethodHandle handle = MethodHandles.lookup().unreflect(method);
+        MethodHandle empty = MethodHandles.empty(handle.type());
+        if (!Modifier.isStatic(method.getModifiers())) {
+            Constructor<?> constructor = method.getDeclaringClass().getDeclaredConstructor();
+            constructor.setAccessible(true);
+            Object receiver = constructor.newInstance();
+            handle = handle.bindTo(receiver);
+            empty = empty.bindTo(receiver);
+        }
+        this.invoker = adapt(handle);
+        this.emptyInvoker = adapt(empty);
+    }
+
+    private static MethodHandle adapt(MethodHandle handle) {
+        // A void method returns null
+        return handle.asSpreader(Object[].class, handle.type().parameterCount())
+                     .asType(MethodType.methodType(Object.class, Object[].class));
+    }
+
+    /**
+     * Find a method by its fully qualified name, e.g., "com.acme.Calc.sum(java.util.List)"
+     * @param fqMethodName the fully qualified name, as in the injection reports
+     * @return the method
+     * @throws ReflectiveOperationException if the class or the method does not exist
+     */
+    static Method resolve(String fqMethodName) throws ReflectiveOperationException {
+        int open = fqMethodName.indexOf('(');
+        String owner = fqMethodName.substring(0, fqMethodName.lastIndexOf('.', open));
+        String name = fqMethodName.substring(owner.length() + 1, open);
+        String parameters = fqMethodName.substring(open + 1, fqMethodName.length() - 1);
+        List<Class<?>> types = new ArrayList<>();
+        if (!parameters.isBlank()) {
+            for (String type : parameters.split(",")) {
+                types.add(loadType(type.strip()));
+            }
+        }
+        return loadType(owner).getDeclaredMethod(name, types.toArray(new Class<?>[0]));
+    }
+
+    private static Class<?> loadType(String name) throws ClassNotFoundException {
+        if (name.endsWith("[]")) {
+            return loadType(name.substring(0, name.length() - 2)).arrayType();
+        }
+        switch (name) {
+            case "boolean": return boolean.class;
+            case "byte": return byte.class;
+            case "char": return char.class;
+            case "short": return short.class;
+            case "int": return int.class;
+            case "long": return long.class;
+            case "float": return float.class;
+            case "double": return double.class;
+            default: break;
+        }
+        // Nested classes are named with dots in the sources: try them from the innermost
+        String binaryName = name;
+        while (true) {
+            try {
+                return Class.forName(binaryName, false, Harness.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                int dot = binaryName.lastIndexOf('.');
+                if (dot < 0) {
+                    throw new ClassNotFoundException(name);
+                }
+                binaryName = binaryName.substring(0, dot) + "$" + binaryName.substring(dot + 1);
+            }
+        }
+    }
+
+    static Object[] defaultArguments(Class<?>[] types) {
+        Object[] arguments = new Object[types.length];
+        for (int i = 0; i < types.length; i++) {
+            arguments[i] = defaultValue(types[i]);
+        }
+        return arguments;
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class || type == Boolean.class) {
+            return false;
+        } else if (type == char.class || type == Character.class) {
+            return '\0';
+        } else if (type == byte.class || type == Byte.class) {
+            return (byte) 0;
+        } else if (type == short.class || type == Short.class) {
+            return (short) 0;
+        } else if (type == int.class || type == Integer.class) {
+            return 0;
+        } else if (type == long.class || type == Long.class) {
+            return 0L;
+        } else if (type == float.class || type == Float.class) {
+            return 0f;
+        } else if (type == double.class || type == Double.class) {
+            return 0d;
+        } else if (type == String.class || type == CharSequence.class) {
+            return "";
+        } else if (type.isArray()) {
+            return Array.newInstance(type.getComponentType(), 0);
+        } else if (type == List.class || type == Collection.class || type == Iterable.class) {
+            return List.of();
+        } else if (type == Set.class) {
+            return Set.of();
+        } else if (type == Map.class) {
+            return Map.of();
+        }
+        return null;
+    }
+
+    private void call() {
+        try {
+            blackhole.consume((Object) Constants.INVOKER.invokeExact(arguments));
+        } catch (Throwable e) {
+            exceptions++;
+            blackhole.consume(e);
+        }
+    }
+
+    private void emptyCall() {
+        try {
+            blackhole.consume((Object) Constants.EMPTY_INVOKER.invokeExact(arguments));
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Call the method once
+     * @return the exception thrown by the method, or null
+     */
+    Throwable probe() {
+        try {
+            blackhole.consume((Object) invoker.invokeExact(arguments));
+            return null;
+        } catch (Throwable e) {
+            return e;
+        }
+    }
+
+    private long batch(boolean empty, int size) {
+        long start = System.nanoTime();
+        if (empty) {
+            for (int i = 0; i < size; i++) {
+                emptyCall();
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                call();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private int batchSize() {
+        int batchSize = 1;
+        while (batchSize < (1 << 20) && batch(false, batchSize) < MIN_BATCH_NANOS) {
+            batchSize *= 2;
+        }
+        return batchSize;
+    }
+
+    /**
+     * Run an iteration of fixed duration
+     * @param empty whether to call the empty method instead of the benchmarked one
+     * @param batchSize the number of calls between two readings of the clock
+     * @param iterationNanos the duration of the iteration
+     * @return the average time per call, in nanoseconds
+     */
+    private double iteration(boolean empty, int batchSize, long iterationNanos) {
+        long calls = 0;
+        long elapsed = 0;
+        while (elapsed < iterationNanos) {
+            elapsed += batch(empty, batchSize);
+            calls += batchSize;
+        }
+        return (double) elapsed / calls;
+    }
+
+    /**
+     * Benchmark a method of the classpath
+     * @param args the fully qualified method name, the number of warm-up and measurement iterations,
+     *             and the duration of an iteration in milliseconds
+     */
+    public static void main(String[] args) throws ReflectiveOperationException {
+        Harness harness = new Harness(args[0]);
+        int warmupIterations = Integer.parseInt(args[1]);
+        int iterations = Integer.parseInt(args[2]);
+        long iterationNanos = Long.parseLong(args[3]) * 1_000_000;
+        Throwable exception = harness.probe();
+        if (exception != null) {
+            System.out.println(THROWS + exception);
+            return;
+        }
+        benchmarked = harness;
+
+        // The batches are sized again after the warm-up: the first calls are interpreted, and much slower
+        int batchSize = harness.batchSize();
+        for (int i = 0; i < warmupIterations; i++) {
+            harness.iteration(false, batchSize, iterationNanos);
+        }
+        batchSize = harness.batchSize();
+        harness.exceptions = 0;
+        for (int i = 0; i < iterations; i++) {
+            System.out.println(SAMPLE + harness.iteration(false, batchSize, iterationNanos));
+        }
+        System.out.println(EXCEPTIONS + harness.exceptions);
+
+        // The cost of a call that remains in the samples, on the empty method
+        harness.iteration(true, batchSize, iterationNanos);
+        System.out.println(OVERHEAD + harness.iteration(true, batchSize, iterationNanos));
+    }
+}
@@ -0,0 +1,182 @@
+package it.univaq.disim.spencer.injectblackhole.measure;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Measure the slowdown of an injected method: the Harness benchmarks the method in forked JVMs,
+ * alternately with the baseline and with the injected classes, and the samples of all the forks
+ * of each version are compared.
+ */
+public class Measurement {
+
+    private static final Logger LOGGER = Logger.getLogger(Measurement.class.getName());
+
+    /**
+     * The time per call of a version of the method, in nanoseconds, with the mean cost of an empty
+     * call of the harness, which is included in that time
+     */
+    public record Version(Statistics.Summary nanosPerCall, long exceptions, double overheadNanosPerCall) {
+    }
+
+    /**
+     * The measurement of a method: the injected version compared with the baseline. The overhead
+     * of the calls is not subtracted, so the relative slowdown is deflated by up to the overhead
+     * over the time per call of the baseline.
+     */
+    public record Result(String method, Version baseline, Version injected, Statistics.Difference slowdown, String error) {
+    }
+
+    private record Fork(List<Double> samples, long exceptions, double overhead) {
+    }
+
+    private final List<Path> baseline;
+    private final List<Path> injected;
+    private List<Path> dependencies = List.of();
+    private List<String> jvmArguments = List.of();
+    private int forks = 3;
+    private int warmupIterations = 5;
+    private int iterations = 10;
+    private long iterationMillis = 200;
+
+    /**
+     * @param baseline the classes of the target before the injection (directories or jars)
+     * @param injected the classes of the target after the injection
+     */
+    public Measurement(List<Path> baseline, List<Path> injected) {
+        this.baseline = baseline;
+        this.injected = injected;
+    }
+
+    public void setDependencies(List<Path> dependencies) {
+        this.dependencies = dependencies;
+    }
+
+    public void setJvmArguments(List<String> jvmArguments) {
+        this.jvmArguments = jvmArguments;
+    }
+
+    public void setForks(int forks) {
+        this.forks = forks;
+    }
+
+    public void setWarmupIterations(int warmupIterations) {
+        this.warmupIterations = warmupIterations;
+    }
+
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    public void setIterationMillis(long iterationMillis) {
+        this.iterationMillis = iterationMillis;
+    }
+
+    /**
+     * Measure a method in both versions
+     * @param fqMethodName the fully qualified method name
+     * @return the result, with the error if the method could not be benchmarked
+     */
+    public Result measure(String fqMethodName) {
+        List<Double> baselineSamples = new ArrayList<>();
+        List<Double> injectedSamples = new ArrayList<>();
+        long baselineExceptions = 0;
+        long injectedExceptions = 0;
+        double baselineOverhead = 0;
+        double injectedOverhead = 0;
+        try {
+            // Alternate the versions, so that a drift of the machine weighs on both
+            for (int i = 0; i < forks; i++) {
+                Fork fork = fork(baseline, fqMethodName);
+                baselineSamples.addAll(fork.samples());
+                baselineExceptions += fork.exceptions();
+                baselineOverhead += fork.overhead() / forks;
+                fork = fork(injected, fqMethodName);
+                injectedSamples.addAll(fork.samples());
+                injectedExceptions += fork.exceptions();
+                injectedOverhead += fork.overhead() / forks;
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.severe("Cannot measure %s: %s".formatted(fqMethodName, e.getMessage()));
+            return new Result(fqMethodName, null, null, null, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while measuring " + fqMethodName, e);
+        }
+
+        if (baselineExceptions > 0 || injectedExceptions > 0) {
+            LOGGER.warning("%s threw on some calls: %d with the baseline, %d with the injected classes"
+                .formatted(fqMethodName, baselineExceptions, injectedExceptions));
+        }
+        Version baselineVersion = new Version(Statistics.summarize(toArray(baselineSamples)), baselineExceptions,
+                                              baselineOverhead);
+        Version injectedVersion = new Version(Statistics.summarize(toArray(injectedSamples)), injectedExceptions,
+                                              injectedOverhead);
+        Statistics.Difference slowdown = Statistics.compare(baselineVersion.nanosPerCall(), injectedVersion.nanosPerCall());
+        LOGGER.info("%s: %.1f ns -> %.1f ns per call, %+.1f%% [%+.1f%%, %+.1f%%], including %.1f ns of overhead"
+            .formatted(fqMethodName, baselineVersion.nanosPerCall().mean(), injectedVersion.nanosPerCall().mean(),
+                       slowdown.relative() * 100, slowdown.relativeLow() * 100, slowdown.relativeHigh() * 100,
+                       baselineOverhead));
+        return new Result(fqMethodName, baselineVersion, injectedVersion, slowdown, null);
+    }
+
+    private Fork fork(List<Path> classes, String fqMethodName) throws IOException, InterruptedException {
+        // The classes of the target come first, the harness and its Blackhole last
+        List<String> classpath = new ArrayList<>();
+        classes.forEach(path -> classpath.add(path.toString()));
+        dependencies.forEach(path -> classpath.add(path.toString()));
+        classpath.add(System.getProperty("java.class.path"));
+
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArguments);
+        command.addAll(List.of("-cp", String.join(File.pathSeparator, classpath), Harness.class.getName(), fqMethodName,
+                               Integer.toString(warmupIterations), Integer.toString(iterations), Long.toString(iterationMillis)));
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+
+        List<Double> samples = new ArrayList<>();
+        long exceptions = 0;
+        double overhead = 0;
+        String thrown = null;
+        List<String> output = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.startsWith(Harness.SAMPLE)) {
+                    samples.add(Double.parseDouble(line.substring(Harness.SAMPLE.length())));
+                } else if (line.startsWith(Harness.THROWS)) {
+                    thrown = line.substring(Harness.THROWS.length());
+                } else if (line.startsWith(Harness.EXCEPTIONS)) {
+                    exceptions = Long.parseLong(line.substring(Harness.EXCEPTIONS.length()));
+                } else if (line.startsWith(Harness.OVERHEAD)) {
+                    overhead = Double.parseDouble(line.substring(Harness.OVERHEAD.length()));
+                } else {
+                    output.add(line);
+                }
+            }
+        }
+        int exitCode = process.waitFor();
+        if (thrown != null) {
+            throw new RuntimeException("The method throws %s with the default arguments, with %s".formatted(thrown,
+                classes.stream().map(Path::toString).collect(Collectors.joining(File.pathSeparator))));
+        }
+        if (exitCode != 0 || samples.size() != iterations) {
+            throw new RuntimeException("The benchmark failed with %s: %s".formatted(
+                classes.stream().map(Path::toString).collect(Collectors.joining(File.pathSeparator)),
+                output.stream().limit(5).collect(Collectors.joining(" | "))));
+        }
+        return new Fork(samples, exceptions, overhead);
+    }
+
+    private static double[] toArray(List<Double> samples) {
+        return samples.stream().mapToDouble(Double::doubleValue).toArray();
+    }
+}
@@ -0,0 +1,91 @@
+package it.univaq.disim.spencer.injectblackhole.measure;
+
+/**
+ * Means and 95% confidence intervals of the iteration samples (Student's t), and of the
+ * difference and ratio of two means (Welch's t, with the delta method for the ratio).
+ */
+public final class Statistics {
+
+    public static final double CONFIDENCE = 0.95;
+    // Two-sided 95% quantiles of Student's t, for 1 to 30 degrees of freedom
+    private static final double[] T_QUANTILES = {
+        12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+        2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+        2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042 };
+    private static final double Z = 1.959964;
+
+    /**
+     * The mean of the samples, with its confidence interval
+     */
+    public record Summary(int samples, double mean, double stdev, double low, double high) {
+    }
+
+    /**
+     * The difference between two means, absolute and relative to the first one, with their confidence intervals
+     */
+    public record Difference(double absolute, double absoluteLow, double absoluteHigh,
+                             double relative, double relativeLow, double relativeHigh) {
+    }
+
+    private Statistics() {
+    }
+
+    /**
+     * Two-sided 95% quantile of Student's t distribution
+     * @param degreesOfFreedom the degrees of freedom, at least 1 (not necessarily an integer)
+     * @return the quantile
+     */
+    public static double tQuantile(double degreesOfFreedom) {
+        if (degreesOfFreedom <= T_QUANTILES.length) {
+            return T_QUANTILES[Math.max(0, (int) Math.floor(degreesOfFreedom) - 1)];
+        }
+        // Cornish-Fisher expansion around the normal quantile
+        double df = degreesOfFreedom;
+        double z3 = Z * Z * Z;
+        double z5 = z3 * Z * Z;
+        return Z + (z3 + Z) / (4 * df) + (5 * z5 + 16 * z3 + 3 * Z) / (96 * df * df);
+    }
+
+    public static Summary summarize(double[] samples) {
+        int n = samples.length;
+        double mean = 0;
+        for (double sample : samples) {
+            mean += sample;
+        }
+        mean /= n;
+        double squares = 0;
+        for (double sample : samples) {
+            squares += (sample - mean) * (sample - mean);
+        }
+        double stdev = n > 1 ? Math.sqrt(squares / (n - 1)) : Double.NaN;
+        double halfWidth = n > 1 ? tQuantile(n - 1) * stdev / Math.sqrt(n) : Double.NaN;
+        return new Summary(n, mean, stdev, mean - halfWidth, mean + halfWidth);
+    }
+
+    /**
+     * Compare two means
+     * @param baseline the summary of the baseline samples
+     * @param other the summary of the other samples
+     * @return other - baseline, and other / baseline - 1
+     */
+    public static Difference compare(Summary baseline, Summary other) {
+        double baselineVariance = baseline.stdev() * baseline.stdev() / baseline.samples();
+        double otherVariance = other.stdev() * other.stdev() / other.samples();
+        // Welch-Satterthwaite degrees of freedom, undefined without any variance: the difference is then exact
+        double t = 0;
+        if (baselineVariance + otherVariance > 0) {
+            double degreesOfFreedom = Math.pow(baselineVariance + otherVariance, 2)
+                / (baselineVariance * baselineVariance / (baseline.samples() - 1)
+                   + otherVariance * otherVariance / (other.samples() - 1));
+            t = tQuantile(degreesOfFreedom);
+        }
+
+        double absolute = other.mean() - baseline.mean();
+        double absoluteHalfWidth = t * Math.sqrt(baselineVariance + otherVariance);
+        double ratio = other.mean() / baseline.mean();
+        double relativeHalfWidth = t * ratio * Math.sqrt(baselineVariance / (baseline.mean() * baseline.mean())
+                                                         + otherVariance / (other.mean() * other.mean()));
+        return new Difference(absolute, absolute - absoluteHalfWidth, absolute + absoluteHalfWidth,
+                              ratio - 1, ratio - 1 - relativeHalfWidth, ratio - 1 + relativeHalfWidth);
+    }
+}
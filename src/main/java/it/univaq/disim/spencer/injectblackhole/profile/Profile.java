@@ -0,0 +1,138 @@
+package it.univaq.disim.spencer.injectblackhole.profile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * CPU profile of the target's benchmarks: self and total samples of every method frame,
+ * read from a JFR recording or from async-profiler collapsed stacks.
+ * Frames are named like "package.Class.method", without parameters.
+ */
+public class Profile {
+
+    private static final Pattern COLLAPSED_LINE = Pattern.compile("^(.*)\\s+(\\d+)$");
+    private static final Pattern FRAME_SUFFIX = Pattern.compile("_\\[[a-z0-9]+\\]$");
+    private static final Pattern LAMBDA = Pattern.compile("^(.*)\\.lambda\\$([^$]+)\\$\\d+$");
+
+    private final Map<String, Long> selfSamples = new HashMap<>();
+    private final Map<String, Long> totalSamples = new HashMap<>();
+    private long samples;
+
+    /**
+     * Load a profile, in JFR format if the file extension is .jfr, in collapsed stacks format otherwise
+     * @param profileFile the profile
+     * @return the profile
+     */
+    public static Profile load(Path profileFile) throws IOException {
+        Profile profile = new Profile();
+        if (profileFile.toString().endsWith(".jfr")) {
+            profile.parseJfr(profileFile);
+        } else {
+            try (Stream<String> lines = Files.lines(profileFile)) {
+                profile.parseCollapsed(lines);
+            }
+        }
+        return profile;
+    }
+
+    void parseCollapsed(Stream<String> lines) {
+        lines.forEach(line -> {
+            Matcher matcher = COLLAPSED_LINE.matcher(line.strip());
+            if (matcher.matches()) {
+                // Frames go from the root to the leaf
+                List<String> frames = new ArrayList<>(List.of(matcher.group(1).split(";")));
+                Collections.reverse(frames);
+                addStack(frames, Long.parseLong(matcher.group(2)));
+            }
+        });
+    }
+
+    private void parseJfr(Path jfrFile) throws IOException {
+        try (RecordingFile recording = new RecordingFile(jfrFile)) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                RecordedStackTrace stackTrace = event.getStackTrace();
+                if (!event.getEventType().getName().equals("jdk.ExecutionSample") || stackTrace == null) {
+                    continue;
+                }
+                // Frames go from the leaf to the root
+                addStack(stackTrace.getFrames().stream()
+                    .filter(RecordedFrame::isJavaFrame)
+                    .map(frame -> frame.getMethod().getType().getName() + "." + frame.getMethod().getName())
+                    .toList(), 1);
+            }
+        }
+    }
+
+    /**
+     * Account the samples of a stack
+     * @param frames the frames, from the leaf to the root
+     * @param count the number of samples
+     */
+    private void addStack(List<String> frames, long count) {
+        samples += count;
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < frames.size(); i++) {
+            String frame = normalize(frames.get(i));
+            if (i == 0) {
+                selfSamples.merge(frame, count, Long::sum);
+            }
+            // Recursive frames only count once towards the total
+            if (seen.add(frame)) {
+                totalSamples.merge(frame, count, Long::sum);
+            }
+        }
+    }
+
+    /**
+     * Normalize a frame to "package.Class.method": async-profiler may use slashes,
+     * annotate the frame type (e.g., "_[j]") and add the signature. Lambdas are accounted
+     * to their enclosing method.
+     * @param frame the frame
+     * @return the normalized frame
+     */
+    static String normalize(String frame) {
+        String normalized = FRAME_SUFFIX.matcher(frame.strip()).replaceFirst("");
+        int signature = normalized.indexOf('(');
+        if (signature >= 0) {
+            normalized = normalized.substring(0, signature);
+        }
+        normalized = normalized.replace('/', '.');
+        Matcher lambda = LAMBDA.matcher(normalized);
+        if (lambda.matches()) {
+            normalized = lambda.group(1) + "." + lambda.group(2);
+        }
+        return normalized;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * Get the samples of a frame
+     * @param frame the frame, as "package.Class.method"
+     * @param weight self or total samples
+     * @return the number of samples
+     */
+    public long getSamples(String frame, ProfileWeight weight) {
+        Map<String, Long> frameSamples = weight == ProfileWeight.SELF ? selfSamples : totalSamples;
+        return frameSamples.getOrDefault(frame, 0L);
+    }
+}
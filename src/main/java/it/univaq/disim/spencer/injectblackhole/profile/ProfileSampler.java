@@ -0,0 +1,73 @@
+package it.univaq.disim.spencer.injectblackhole.profile;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import it.univaq.disim.spencer.injectblackhole.selection.WeightedSampler;
+
+/**
+ * Samples methods with a probability proportional to their CPU time in a profile,
+ * so that the injected delays land in code that the benchmarks actually run.
+ */
+public class ProfileSampler extends WeightedSampler<String> {
+
+    private static final Logger LOGGER = Logger.getLogger(ProfileSampler.class.getName());
+
+    /**
+     * @param profile the profile
+     * @param fqMethodNames the candidate methods, as "package.Class.method(parameters)"
+     * @param weight self or total time
+     * @param minPercentile only keep methods at least this hot (0-100)
+     * @param maxPercentile only keep methods at most this hot (0-100)
+     * @throws IllegalArgumentException if a bound is out of 0-100, or the minimum is above the maximum
+     */
+    public ProfileSampler(Profile profile, List<String> fqMethodNames, ProfileWeight weight,
+                          double minPercentile, double maxPercentile) {
+        super(weigh(profile, fqMethodNames, weight, minPercentile, maxPercentile));
+        LOGGER.info("Profile: %d samples, %d of %d methods are candidates".formatted(
+            profile.getSamples(), size(), fqMethodNames.size()));
+    }
+
+    private static Map<String, Double> weigh(Profile profile, List<String> fqMethodNames, ProfileWeight weight,
+                                             double minPercentile, double maxPercentile) {
+        if (!(0 <= minPercentile && minPercentile <= maxPercentile && maxPercentile <= 100)) {
+            throw new IllegalArgumentException("Invalid percentiles %s-%s: --min-percentile and --max-percentile must satisfy 0 <= min <= max <= 100"
+                .formatted(minPercentile, maxPercentile));
+        }
+        // Frames do not carry the parameters: overloads share the samples of their frame
+        Map<String, List<String>> overloads = new HashMap<>();
+        for (String fqMethodName : fqMethodNames) {
+            overloads.computeIfAbsent(frameOf(fqMethodName), k -> new ArrayList<>()).add(fqMethodName);
+        }
+        Map<String, Double> weights = new HashMap<>();
+        for (Map.Entry<String, List<String>> frame : overloads.entrySet()) {
+            long samples = profile.getSamples(frame.getKey(), weight);
+            if (samples > 0) {
+                for (String fqMethodName : frame.getValue()) {
+                    weights.put(fqMethodName, (double) samples / frame.getValue().size());
+                }
+            }
+        }
+
+        // Keep the methods within the percentile bounds, ranking them from the coldest to the hottest
+        List<String> ranked = new ArrayList<>(weights.keySet());
+        ranked.sort(Comparator.comparingDouble((String m) -> weights.get(m)).thenComparing(Comparator.naturalOrder()));
+        int from = (int) Math.floor(ranked.size() * minPercentile / 100);
+        int to = (int) Math.ceil(ranked.size() * maxPercentile / 100);
+        Map<String, Double> candidates = new LinkedHashMap<>();
+        for (String fqMethodName : ranked.subList(from, to)) {
+            candidates.put(fqMethodName, weights.get(fqMethodName));
+        }
+        return candidates;
+    }
+
+    static String frameOf(String fqMethodName) {
+        int parameters = fqMethodName.indexOf('(');
+        return parameters >= 0 ? fqMethodName.substring(0, parameters) : fqMethodName;
+    }
+}
@@ -0,0 +1,6 @@
+package it.univaq.disim.spencer.injectblackhole.profile;
+
+public enum ProfileWeight {
+    SELF,
+    TOTAL
+}
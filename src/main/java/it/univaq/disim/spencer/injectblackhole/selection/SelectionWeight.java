@@ -0,0 +1,31 @@
+package it.univaq.disim.spencer.injectblackhole.selection;
+
+/**
+ * How likely each method is to be selected for an injection
+ */
+public enum SelectionWeight {
+    // Uniform over the files, then uniform over the methods of the file
+    FILE,
+    // Uniform over the methods
+    UNIFORM,
+    // Proportional to the number of candidate statements
+    STATEMENTS,
+    // Proportional to the cyclomatic complexity
+    COMPLEXITY;
+
+    /**
+     * Compute the weight of a method
+     * @param methodsInFile the number of methods in the same file
+     * @param statements the number of candidate statements of the method
+     * @param complexity the cyclomatic complexity of the method
+     * @return the weight
+     */
+    public double weight(int methodsInFile, int statements, int complexity) {
+        return switch (this) {
+            case FILE -> 1.0 / methodsInFile;
+            case UNIFORM -> 1.0;
+            case STATEMENTS -> statements;
+            case COMPLEXITY -> complexity;
+        };
+    }
+}
@@ -0,0 +1,126 @@
+package it.univaq.disim.spencer.injectblackhole.selection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Weighted random sampling over a finite set of candidates, with or without replacement.
+ * Weights are kept in a Fenwick tree, so that both drawing and removing a candidate are O(log n).
+ */
+public class WeightedSampler<T> {
+
+    private final List<T> items = new ArrayList<>();
+    private final double[] weights;
+    // 1-based Fenwick tree of the weights
+    private final double[] tree;
+    private int remaining;
+
+    /**
+     * @param candidates the candidates and their weights (candidates with no weight are ignored)
+     */
+    public WeightedSampler(Map<T, Double> candidates) {
+        List<Double> candidateWeights = new ArrayList<>();
+        for (Map.Entry<T, Double> candidate : candidates.entrySet()) {
+            if (candidate.getValue() > 0) {
+                items.add(candidate.getKey());
+                candidateWeights.add(candidate.getValue());
+            }
+        }
+        weights = new double[items.size()];
+        tree = new double[items.size() + 1];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = candidateWeights.get(i);
+            add(i, weights[i]);
+        }
+        remaining = items.size();
+    }
+
+    /**
+     * Copy a sampler, so that several independent draws can start from the same candidates
+     * @param other the sampler to copy
+     */
+    public WeightedSampler(WeightedSampler<T> other) {
+        items.addAll(other.items);
+        weights = other.weights.clone();
+        tree = other.tree.clone();
+        remaining = other.remaining;
+    }
+
+    private void add(int index, double delta) {
+        for (int i = index + 1; i < tree.length; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    private double total() {
+        double total = 0;
+        for (int i = tree.length - 1; i > 0; i -= i & -i) {
+            total += tree[i];
+        }
+        return total;
+    }
+
+    private int find(Random random) {
+        double point = random.nextDouble() * total();
+
+        // Descend the tree to the first candidate whose cumulative weight exceeds the point
+        int position = 0;
+        for (int step = Integer.highestOneBit(weights.length); step > 0; step >>= 1) {
+            int next = position + step;
+            if (next < tree.length && tree[next] <= point) {
+                position = next;
+                point -= tree[next];
+            }
+        }
+
+        // Rounding errors may land on a removed candidate: take the closest remaining one
+        int index = Math.min(position, weights.length - 1);
+        for (int distance = 0; weights[index] == 0; distance++) {
+            if (index + distance < weights.length && weights[index + distance] > 0) {
+                return index + distance;
+            }
+            if (index - distance >= 0 && weights[index - distance] > 0) {
+                return index - distance;
+            }
+        }
+        return index;
+    }
+
+    public boolean isEmpty() {
+        return remaining == 0;
+    }
+
+    public int size() {
+        return remaining;
+    }
+
+    /**
+     * Draw a candidate, with a probability proportional to its weight, and keep it in the set
+     * @param random the random generator
+     * @return the candidate
+     */
+    public T sample(Random random) {
+        if (isEmpty()) {
+            throw new IllegalStateException("No candidates left");
+        }
+        return items.get(find(random));
+    }
+
+    /**
+     * Draw a candidate, with a probability proportional to its weight, and remove it from the set
+     * @param random the random generator
+     * @return the candidate
+     */
+    public T draw(Random random) {
+        if (isEmpty()) {
+            throw new IllegalStateException("No candidates left");
+        }
+        int index = find(random);
+        add(index, -weights[index]);
+        weights[index] = 0;
+        remaining--;
+        return items.get(index);
+    }
+}
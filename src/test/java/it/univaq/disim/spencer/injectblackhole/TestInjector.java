@@ -0,0 +1,63 @@
+package it.univaq.disim.spencer.injectblackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import it.univaq.disim.spencer.injectblackhole.injection.Injection;
+
+public class TestInjector {
+
+    @TempDir
+    Path target;
+
+    @ParameterizedTest
+    @EnumSource(value = Backend.class, names = { "SPOON", "SPLICE" })
+    public void testBatchWithEvictions(Backend backend) throws IOException {
+        for (int i = 1; i <= 4; i++) {
+            Path javaFile = target.resolve("src/main/java/p/C%d.java".formatted(i));
+            Files.createDirectories(javaFile.getParent());
+            Files.writeString(javaFile, """
+                package p;
+
+                public class C%d {
+                    public int a(int x) {
+                        int y = x + 1;
+                        return y;
+                    }
+
+                    public int b(int x) {
+                        int y = x + 2;
+                        return y;
+                    }
+                }
+                """.formatted(i));
+        }
+
+        // One model in memory: the files are looked up in turn, while the injections of the batch are pending
+        Injector injector = new Injector(target, 10);
+        injector.setBackend(backend);
+        injector.setBatch(true);
+        injector.setModelCache(1, 0);
+        for (String method : new String[] { "a", "b" }) {
+            for (int i = 1; i <= 4; i++) {
+                injector.injectInMethod(injector.findMethod("p.C%d.%s(int)".formatted(i, method)).orElseThrow(),
+                                        InjectionMode.BEGIN);
+            }
+        }
+        assert injector.getModelCache().size() == 4 : "The models with pending injections are pinned";
+
+        Map<Injection, RuntimeException> failures = injector.flush();
+        assert failures.isEmpty() : failures;
+        for (int i = 1; i <= 4; i++) {
+            String source = Files.readString(target.resolve("src/main/java/p/C%d.java".formatted(i)));
+            assert source.split("Blackhole.consumeCPU", -1).length == 3 : source;
+        }
+        assert injector.getModelCache().size() == 1 : "The models are released after the flush";
+    }
+}
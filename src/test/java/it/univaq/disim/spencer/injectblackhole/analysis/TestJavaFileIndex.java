@@ -0,0 +1,79 @@
+package it.univaq.disim.spencer.injectblackhole.analysis;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TestJavaFileIndex {
+
+    @TempDir
+    Path target;
+
+    private Path create(String file) throws IOException {
+        Path path = target.resolve(file);
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, "class A {}");
+        return path;
+    }
+
+    @Test
+    public void testDefaultExcludes() throws IOException {
+        Path main = create("src/main/java/com/acme/A.java");
+        Path buildPackage = create("src/main/java/com/acme/build/B.java");
+        create("pom.xml");
+        create("src/test/java/com/acme/ATest.java");
+        create("target/generated-sources/annotations/com/acme/C.java");
+        create("src/main/java/com/acme/package-info.java");
+        create("module-info.java");
+        create(".git/D.java");
+
+        List<Path> files = new JavaFileIndex(target).getFiles();
+        assert files.size() == 2 : files;
+        assert files.contains(main) && files.contains(buildPackage) : files;
+    }
+
+    @Test
+    public void testGlobs() throws IOException {
+        Path a = create("core/src/main/java/com/acme/A.java");
+        create("core/src/main/java/com/acme/internal/B.java");
+        create("cli/src/main/java/com/acme/C.java");
+
+        List<Path> files = new JavaFileIndex(target, List.of("core/**"), List.of("**/internal/**")).getFiles();
+        assert files.equals(List.of(a)) : files;
+    }
+
+    @Test
+    public void testRefresh() throws IOException {
+        Path a = create("A.java");
+        create("B.java");
+        JavaFileIndex index = new JavaFileIndex(target);
+        assert index.refresh().size() == 2;
+        assert index.refresh().isEmpty();
+
+        Files.setLastModifiedTime(a, FileTime.fromMillis(Files.getLastModifiedTime(a).toMillis() + 1000));
+        Path c = create("C.java");
+        assert new HashSet<>(index.refresh()).equals(Set.of(a, c));
+        assert index.getFiles().size() == 3;
+    }
+
+    @Test
+    public void testSample() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            create("p/F%d.java".formatted(i));
+        }
+        JavaFileIndex index = new JavaFileIndex(target);
+        List<Path> sample = index.sample(5, new Random(42));
+        assert sample.size() == 5;
+        assert new HashSet<>(sample).size() == 5 : "Files must be distinct";
+        assert sample.equals(index.sample(5, new Random(42))) : "Sampling must be reproducible";
+        assert index.sample(50, new Random(42)).size() == 20;
+    }
+}
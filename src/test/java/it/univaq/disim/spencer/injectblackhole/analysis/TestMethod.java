@@ -3,6 +3,7 @@ package it.univaq.disim.spencer.injectblackhole.analysis;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
@@ -29,9 +30,19 @@ public class TestMethod {
     }
 
     @Test
-    public static void testGetTopLevelStatements() {
-        int expected = 12;
+    public void testGetTopLevelStatements() {
+        int expected = 13;
         int actual = method.getTopLevelStatements().size();
         assert expected == actual : "Expected " + expected + " statements, but got " + actual;
     }
+
+    @Test
+    public void testGetTopLevelStatementsLines() {
+        // Everything but the catch body, the for header and the argument expressions
+        List<Integer> expected = List.of(6, 7, 8, 9, 10, 13, 14, 16, 17, 19, 20, 24, 25);
+        List<Integer> actual = method.getTopLevelStatements().stream()
+            .map(stmt -> stmt.getPosition().getLine())
+            .toList();
+        assert expected.equals(actual) : "Expected " + expected + ", but got " + actual;
+    }
 }
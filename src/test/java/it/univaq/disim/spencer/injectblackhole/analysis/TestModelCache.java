@@ -0,0 +1,109 @@
+package it.univaq.disim.spencer.injectblackhole.analysis;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TestModelCache {
+
+    @TempDir
+    Path target;
+
+    private Path create(String name) throws IOException {
+        Path path = target.resolve("com/acme/" + name + ".java");
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, "package com.acme;\npublic class %s {\n    void m() {\n    }\n}\n".formatted(name));
+        return path;
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws IOException {
+        Path a = create("A");
+        Path b = create("B");
+        Path c = create("C");
+        List<CodeBase> evicted = new ArrayList<>();
+        ModelCache cache = new ModelCache(2, 0, evicted::add);
+
+        CodeBase modelA = cache.get(a);
+        cache.get(b);
+        assert cache.get(a) == modelA : "Cached models must be reused";
+        cache.get(c);
+        assert cache.size() == 2;
+        assert evicted.size() == 1 && evicted.get(0).getPath().endsWith("B.java") : "B is the least recently used";
+        assert cache.get(a) == modelA;
+        assert cache.get(b) != null;
+
+        assert cache.getHits() == 2 : cache;
+        assert cache.getMisses() == 4 : cache;
+        assert cache.getEvictions() == 2 : cache;
+    }
+
+    @Test
+    public void testHeapBudget() throws IOException {
+        Path a = create("A");
+        Path b = create("B");
+        long budget = Files.size(a) * ModelCache.HEAP_BYTES_PER_SOURCE_BYTE;
+        ModelCache cache = new ModelCache(0, budget, evicted -> { });
+
+        cache.get(a);
+        cache.get(b);
+        assert cache.size() == 1 : cache;
+        assert cache.getEvictions() == 1 : cache;
+    }
+
+    @Test
+    public void testInvalidate() throws IOException {
+        Path a = create("A");
+        List<CodeBase> evicted = new ArrayList<>();
+        ModelCache cache = new ModelCache(2, 0, evicted::add);
+
+        CodeBase modelA = cache.get(a);
+        cache.invalidate(a);
+        assert cache.size() == 0 : cache;
+        assert evicted.size() == 1 && evicted.get(0) == modelA : "The invalidated model must be released";
+        assert cache.get(a) != modelA : "The file must be parsed again";
+        cache.invalidate(target.resolve("com/acme/Missing.java"));
+        assert cache.size() == 1 : cache;
+    }
+
+    @Test
+    public void testPinnedModelsAreNotEvicted() throws IOException {
+        Path a = create("A");
+        Path b = create("B");
+        Path c = create("C");
+        List<CodeBase> evicted = new ArrayList<>();
+        ModelCache cache = new ModelCache(1, 0, evicted::add);
+
+        // A is in use: the cache goes over its bound rather than evicting it
+        CodeBase modelA = cache.get(a);
+        cache.pin(modelA);
+        cache.pin(modelA);
+        CodeBase modelB = cache.get(b);
+        assert cache.size() == 2 && evicted.isEmpty() : cache;
+        cache.get(c);
+        assert evicted.equals(List.of(modelB)) : evicted;
+
+        // Back within the bound once it is released by all its users, and A is the most recently used
+        cache.unpin(modelA);
+        assert cache.size() == 2 && evicted.size() == 1 : cache;
+        cache.unpin(modelA);
+        assert cache.size() == 1 && evicted.get(1).getPath().endsWith("C.java") : cache;
+        assert cache.get(a) == modelA;
+
+        // A model dropped before it was pinned is released again, with what it got in the meantime
+        cache.pin(modelB);
+        cache.unpin(modelB);
+        assert evicted.size() == 3 && evicted.get(2) == modelB : evicted;
+
+        // Models that are not loaded by the cache, e.g., the shared model, are never released
+        CodeBase shared = new CodeBase(target);
+        cache.pin(shared);
+        cache.unpin(shared);
+        assert evicted.size() == 3 : evicted;
+    }
+}
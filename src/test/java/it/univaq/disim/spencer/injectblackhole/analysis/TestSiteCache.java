@@ -0,0 +1,50 @@
+package it.univaq.disim.spencer.injectblackhole.analysis;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import it.univaq.disim.spencer.injectblackhole.selection.SelectionWeight;
+
+public class TestSiteCache {
+
+    @TempDir
+    Path target;
+
+    @TempDir
+    Path cacheDir;
+
+    @Test
+    public void testOnlyMethodsWithBody() throws IOException {
+        Path javaFile = target.resolve("com/acme/Native.java");
+        Files.createDirectories(javaFile.getParent());
+        Files.writeString(javaFile, """
+            package com.acme;
+            public abstract class Native {
+                public int add(int a, int b) {
+                    return a + b;
+                }
+                public native int fast(int a);
+                public abstract int slow(int a);
+            }
+            """);
+
+        // Like the methods of the shared model, native and abstract methods are not candidates
+        SiteCache siteCache = new SiteCache(target, cacheDir);
+        siteCache.refresh(new JavaFileIndex(target).getStamps(), SourceRoots.discover(target));
+        assert siteCache.getMethodNames().equals(List.of("com.acme.Native.add(int,int)")) : siteCache.getMethodNames();
+        assert siteCache.getMethods(javaFile).size() == 1;
+        assert siteCache.getMethodWeights(SelectionWeight.FILE).keySet().equals(Set.copyOf(siteCache.getMethodNames()));
+        assert siteCache.findFile("com.acme.Native.fast(int)").isPresent() : "The file of every method is known";
+
+        // The same from the stored index
+        SiteCache reloaded = new SiteCache(target, cacheDir);
+        reloaded.refresh(new JavaFileIndex(target).getStamps(), SourceRoots.discover(target));
+        assert reloaded.getMethodNames().equals(siteCache.getMethodNames()) : reloaded.getMethodNames();
+    }
+}
@@ -0,0 +1,71 @@
+package it.univaq.disim.spencer.injectblackhole.analysis;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TestSourceRoots {
+
+    @TempDir
+    Path target;
+
+    private Path create(String file, String content) throws IOException {
+        Path path = target.resolve(file);
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, content);
+        return path;
+    }
+
+    @Test
+    public void testMavenModules() throws IOException {
+        create("pom.xml", "<project><modules><module>core</module><module>app</module></modules></project>");
+        create("core/pom.xml", "<project></project>");
+        Path calc = create("core/src/main/java/com/acme/Calc.java", "package com.acme; class Calc {}");
+        create("app/pom.xml", "<project><build><sourceDirectory>src/java</sourceDirectory></build></project>");
+        Path main = create("app/src/java/com/acme/app/Main.java", "package com.acme.app; class Main {}");
+        create("unlisted/src/main/java/com/acme/Other.java", "package com.acme; class Other {}");
+
+        SourceRoots sourceRoots = SourceRoots.discover(target);
+        assert sourceRoots.getRoots().equals(List.of(target.resolve("core/src/main/java"), target.resolve("app/src/java")))
+            : sourceRoots.getRoots();
+
+        Map<String, Path> classFiles = sourceRoots.getClassFiles(List.of(calc, main));
+        assert classFiles.get("com.acme.Calc").equals(calc) : classFiles;
+        assert classFiles.get("com.acme.app.Main").equals(main) : classFiles;
+    }
+
+    @Test
+    public void testGradleAndConventionalLayouts() throws IOException {
+        create("settings.gradle", "rootProject.name = 'acme'\ninclude ':core', ':libs:util'\n");
+        create("core/src/main/java/com/acme/Calc.java", "");
+        create("libs/util/src/main/java/com/acme/Strings.java", "");
+        assert SourceRoots.discover(target).getRoots().equals(
+            List.of(target.resolve("core/src/main/java"), target.resolve("libs/util/src/main/java")));
+
+        Files.delete(target.resolve("settings.gradle"));
+        assert SourceRoots.discover(target).getRoots().equals(
+            List.of(target.resolve("core/src/main/java"), target.resolve("libs/util/src/main/java")));
+    }
+
+    @Test
+    public void testTargetIsSourceRoot() throws IOException {
+        Path calc = create("com/acme/Calc.java", "");
+        SourceRoots sourceRoots = SourceRoots.discover(target);
+        assert sourceRoots.getRoots().equals(List.of(target.toAbsolutePath().normalize()));
+        assert sourceRoots.getClassFiles(List.of(calc)).containsKey("com.acme.Calc");
+    }
+
+    @Test
+    public void testTargetIsConventionalRoot() throws IOException {
+        Path calc = create("src/main/java/com/acme/Calc.java", "");
+        Path sourceRoot = target.resolve("src/main/java");
+        SourceRoots sourceRoots = SourceRoots.discover(sourceRoot);
+        assert sourceRoots.getRoots().equals(List.of(sourceRoot.toAbsolutePath().normalize())) : sourceRoots.getRoots();
+        assert sourceRoots.getClassFiles(List.of(calc)).containsKey("com.acme.Calc");
+    }
+}
@@ -0,0 +1,130 @@
+package it.univaq.disim.spencer.injectblackhole.bytecode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import it.univaq.disim.spencer.injectblackhole.injection.Kernel;
+
+public class TestDelayAgent {
+
+    private static final String SAMPLE = "it/univaq/disim/spencer/injectblackhole/bytecode/TestDelayAgent$Sample";
+    private static final String TWICE = "it.univaq.disim.spencer.injectblackhole.bytecode.TestDelayAgent$Sample.twice(int)";
+    private static final long DELAY_NANOS = 20_000_000;
+
+    public static class Sample {
+        public static int twice(int n) {
+            int s = n;
+            if (n > 0) {
+                s += n;
+            } else {
+                s = 2 * n;
+            }
+            return s;
+        }
+
+        public static int other(int n) {
+            return n + 1;
+        }
+    }
+
+    // Defines the transformed class itself, instead of asking its parent
+    private static class SampleLoader extends ClassLoader {
+        SampleLoader() {
+            super(TestDelayAgent.class.getClassLoader());
+        }
+
+        Class<?> define(byte[] classFile) {
+            return defineClass(SAMPLE.replace('/', '.'), classFile, 0, classFile.length);
+        }
+    }
+
+    private static byte[] readSample() throws IOException {
+        try (InputStream stream = TestDelayAgent.class.getResourceAsStream("TestDelayAgent$Sample.class")) {
+            return stream.readAllBytes();
+        }
+    }
+
+    private static byte[] transform(DelayAgent agent, String className, byte[] classFile) {
+        return agent.transform(TestDelayAgent.class.getClassLoader(), className, null, null, classFile);
+    }
+
+    private static int countParks(byte[] classFile, String methodName) {
+        ClassNode classNode = new ClassNode();
+        new ClassReader(classFile).accept(classNode, 0);
+        MethodNode method = classNode.methods.stream().filter(m -> m.name.equals(methodName)).findFirst().orElseThrow();
+        int calls = 0;
+        for (AbstractInsnNode node : method.instructions) {
+            if (node instanceof MethodInsnNode call && call.name.equals("parkNanos")) {
+                calls++;
+            }
+        }
+        return calls;
+    }
+
+    @Test
+    public void testParseArguments() {
+        Map<String, String> options = DelayAgent.parseArguments(
+            "delay=1000,targets=com.acme.Calc.add(int,int);com.acme.Calc.sum(java.util.List,int), kernel=park");
+        assert options.size() == 3;
+        assert options.get("delay").equals("1000");
+        assert options.get("targets").equals("com.acme.Calc.add(int,int);com.acme.Calc.sum(java.util.List,int)");
+        assert options.get("kernel").equals("park");
+        assert DelayAgent.parseArguments(null).isEmpty();
+    }
+
+    @Test
+    public void testTransform() throws Exception {
+        DelayAgent agent = new DelayAgent(Set.of(TWICE), new DelayWeaver(DELAY_NANOS, Kernel.PARK), true, 42);
+        byte[] sample = readSample();
+
+        // Only the classes of the targets are transformed, and only their target methods
+        assert transform(agent, "com/acme/Calc", sample) == null;
+        assert transform(agent, null, sample) == null;
+        byte[] transformed = transform(agent, SAMPLE, sample);
+        assert transformed != null;
+        assert countParks(transformed, "twice") == 1;
+        assert countParks(transformed, "other") == 0;
+
+        // The transformed class loads, keeps its behavior and calls the kernel
+        Class<?> loaded = new SampleLoader().define(transformed);
+        assert loaded.getMethod("other", int.class).invoke(null, 1).equals(2);
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            assert loaded.getMethod("twice", int.class).invoke(null, 21).equals(42);
+        }
+        assert System.nanoTime() - start >= DELAY_NANOS : "The delay must run";
+    }
+
+    @Test
+    public void testRandomPositionsPerMethod() throws Exception {
+        byte[] sample = readSample();
+        DelayWeaver weaver = new DelayWeaver(DELAY_NANOS, Kernel.PARK);
+
+        // Each method has its own stream: the positions depend neither on the other targets, nor on the
+        // classes transformed before, e.g., the same class in another class loader
+        DelayAgent agent = new DelayAgent(Set.of(TWICE), weaver, false, 7);
+        byte[] alone = transform(agent, SAMPLE, sample);
+        assert Arrays.equals(alone, transform(agent, SAMPLE, sample));
+        DelayAgent both = new DelayAgent(Set.of("com.acme.Calc.add(int,int)", TWICE), weaver, false, 7);
+        assert Arrays.equals(alone, transform(both, SAMPLE, sample));
+        assert countParks(alone, "twice") == 1;
+        assert new SampleLoader().define(alone).getMethod("twice", int.class).invoke(null, -3).equals(-6);
+    }
+
+    @Test
+    public void testUnmodifiedOnError() {
+        // A class that cannot be read loads unmodified rather than failing
+        DelayAgent agent = new DelayAgent(Set.of(TWICE), new DelayWeaver(DELAY_NANOS, Kernel.PARK), true, 42);
+        assert transform(agent, SAMPLE, new byte[] { (byte) 0xCA, (byte) 0xFE, 0, 1 }) == null;
+    }
+}
@@ -0,0 +1,101 @@
+package it.univaq.disim.spencer.injectblackhole.bytecode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import it.univaq.disim.spencer.injectblackhole.injection.Kernel;
+
+public class TestDelayWeaver {
+
+    public static class Sample {
+        public static int sum(int n) {
+            int s = 0;
+            for (int i = 0; i < n; i++) {
+                if (i % 2 == 0) {
+                    s += i;
+                }
+            }
+            return s;
+        }
+    }
+
+    private static ClassNode readSample() throws IOException {
+        try (InputStream stream = TestDelayWeaver.class.getResourceAsStream("TestDelayWeaver$Sample.class")) {
+            ClassNode classNode = new ClassNode();
+            new ClassReader(stream.readAllBytes()).accept(classNode, 0);
+            return classNode;
+        }
+    }
+
+    private static MethodNode findSum(ClassNode classNode) {
+        return classNode.methods.stream().filter(method -> method.name.equals("sum")).findFirst().orElseThrow();
+    }
+
+    private static int countCalls(MethodNode method) {
+        int calls = 0;
+        for (AbstractInsnNode node : method.instructions) {
+            if (node instanceof MethodInsnNode call && call.name.equals("consumeCPU")) {
+                calls++;
+            }
+        }
+        return calls;
+    }
+
+    @Test
+    public void testAnalysis() throws IOException {
+        MethodNode sum = findSum(readSample());
+        assert DelayWeaver.isInjectable(sum);
+        assert DelayWeaver.fqMethodName(readSample().name, sum)
+            .equals("it.univaq.disim.spencer.injectblackhole.bytecode.TestDelayWeaver$Sample.sum(int)");
+        assert DelayWeaver.getLines(sum).size() == 5 : DelayWeaver.getLines(sum);
+        assert DelayWeaver.getCyclomaticComplexity(sum) == 3 : DelayWeaver.getCyclomaticComplexity(sum);
+    }
+
+    @Test
+    public void testInjectBeforeEveryLine() throws Exception {
+        ClassNode classNode = readSample();
+        MethodNode sum = findSum(classNode);
+        DelayWeaver weaver = new DelayWeaver(1, Kernel.CPU);
+        weaver.injectAtBegin(sum);
+        List<Integer> lines = DelayWeaver.getLines(sum);
+        for (int line : lines) {
+            weaver.injectBeforeLine(sum, line);
+        }
+        assert countCalls(sum) == lines.size() + 1;
+
+        // The modified class must still verify and behave the same
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        classNode.accept(writer);
+        byte[] bytes = writer.toByteArray();
+        String name = classNode.name.replace('/', '.');
+        ClassLoader loader = new ClassLoader(TestDelayWeaver.class.getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String className, boolean resolve) throws ClassNotFoundException {
+                // Child first, otherwise the parent would load the original class
+                return className.equals(name) ? defineClass(name, bytes, 0, bytes.length) : super.loadClass(className, resolve);
+            }
+        };
+        Class<?> sample = loader.loadClass(name);
+        assert sample.getClassLoader() == loader;
+        assert (int) sample.getMethod("sum", int.class).invoke(null, 10) == 20;
+    }
+
+    @Test
+    public void testRuntimeKernelsAreRejected() {
+        try {
+            new DelayWeaver(1, Kernel.ALLOC);
+            assert false : "The ALLOC kernel needs the runtime class";
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
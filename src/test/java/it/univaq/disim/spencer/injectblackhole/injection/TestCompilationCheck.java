@@ -0,0 +1,48 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class TestCompilationCheck {
+
+    // Bar is not on the classpath
+    private static final String ORIGINAL = """
+        package com.acme;
+
+        import com.acme.missing.Bar;
+
+        public class Calc {
+            int add(Bar bar, int a) {
+                bar.touch();
+                return a + 1;
+            }
+        }
+        """;
+    private static final Path FILE = Path.of("src/main/java/com/acme/Calc.java");
+    // Fully qualified, as injected, and not on the classpath either
+    private static final String DELAY = "com.acme.runtime.Delays.cpu(100L);";
+
+    @Test
+    public void testMissingSymbolsAreTolerated() {
+        CompilationCheck check = new CompilationCheck(List.of());
+        String modified = ORIGINAL.replace("bar.touch();", DELAY + "\n        bar.touch();");
+        assert check.newErrors(FILE, ORIGINAL, modified).isEmpty();
+    }
+
+    @Test
+    public void testUnreachableStatement() {
+        CompilationCheck check = new CompilationCheck(List.of());
+        String modified = ORIGINAL.replace("return a + 1;", "return a + 1;\n        " + DELAY);
+        List<String> errors = check.newErrors(FILE, ORIGINAL, modified);
+        assert errors.size() == 1 && errors.get(0).startsWith("compiler.err.unreachable.stmt") : errors;
+    }
+
+    @Test
+    public void testSyntaxError() {
+        CompilationCheck check = new CompilationCheck(List.of());
+        String modified = ORIGINAL.replace("return a + 1;", "return a + 1 " + DELAY);
+        assert !check.newErrors(FILE, ORIGINAL, modified).isEmpty();
+    }
+}
@@ -0,0 +1,150 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TestDelayRuntime {
+
+    @TempDir
+    Path sourceRoot;
+
+    @Test
+    public void testRegisterSites() throws IOException {
+        DelayRuntime runtime = new DelayRuntime(sourceRoot);
+        assert runtime.register("com.acme.util.Calc.add(int,int)", 100, Kernel.CPU) == 0;
+        assert runtime.register("com.acme.util.Calc.sum(java.util.List)", 200, Kernel.CPU) == 1;
+
+        // The sites are only written by a save
+        assert !Files.exists(runtime.getRuntimeFile());
+        runtime.save();
+        String source = Files.readString(runtime.getRuntimeFile());
+        assert runtime.getRuntimeFile().endsWith("it/univaq/disim/spencer/injectblackhole/runtime/InjectBlackholeRuntime.java");
+        assert source.contains("private static final long SITE_1 = tokens(1, 200L);") : source;
+        assert source.contains("public static void site1() {") : source;
+        assert source.contains("Stats.record(1, start);") : source;
+        assert source.contains("private static final long[] SITE_TOKENS = { SITE_0, SITE_1 };") : source;
+        assert !source.contains("%SITES%") : source;
+    }
+
+    @Test
+    public void testReloadSites() throws IOException {
+        DelayRuntime runtime = new DelayRuntime(sourceRoot);
+        runtime.register("com.acme.util.Calc.add(int,int)", 100, Kernel.CPU);
+        runtime.register("com.acme.util.Calc.sum(java.util.List)", 200, Kernel.CPU);
+        runtime.unregister(1);
+        runtime.save();
+
+        // A later run continues from the sites in the generated file
+        DelayRuntime reloaded = new DelayRuntime(sourceRoot);
+        assert reloaded.register("com.acme.util.Strings.isBlank(java.lang.String)", 300, Kernel.ALLOC) == 1;
+        reloaded.save();
+        String source = Files.readString(reloaded.getRuntimeFile());
+        assert source.contains("SITE_0 = tokens(0, 100L);") : source;
+        assert source.contains("SITE_1 = tokens(1, 300L);") : source;
+        assert source.contains("// alloc in com.acme.util.Strings.isBlank(java.lang.String)") : source;
+        assert source.contains("            alloc(SITE_1_TABLE == null ? SITE_1 : draw(1, SITE_1_TABLE));") : source;
+
+        DelayRuntime unregistered = new DelayRuntime(sourceRoot);
+        unregistered.unregister(0);
+        unregistered.save();
+        source = Files.readString(unregistered.getRuntimeFile());
+        assert source.contains("SITE_METHODS = { null, \"com.acme.util.Strings.isBlank(java.lang.String)\" };") : source;
+    }
+
+    @Test
+    public void testUnregisterMethods() throws IOException {
+        DelayRuntime runtime = new DelayRuntime(sourceRoot);
+        runtime.register("com.acme.util.Calc.add(int,int)", 100, Kernel.CPU);
+        runtime.register("com.acme.util.Calc.sum(java.util.List)", 200, Kernel.CPU);
+        runtime.register("com.acme.util.Calc.add(int,int)", 300, Kernel.CPU);
+
+        // The sites of a restored file go, the others keep their ids
+        runtime.unregisterMethods(List.of("com.acme.util.Calc.add(int,int)"));
+        runtime.save();
+        String source = Files.readString(runtime.getRuntimeFile());
+        assert source.contains("SITE_METHODS = { null, \"com.acme.util.Calc.sum(java.util.List)\" };") : source;
+        assert runtime.register("com.acme.util.Strings.isBlank(java.lang.String)", 400, Kernel.CPU) == 2;
+    }
+
+    @Test
+    public void testGuardedSites() throws IOException {
+        DelayRuntime runtime = new DelayRuntime(sourceRoot);
+        runtime.register("com.acme.util.Calc.add(int,int)", 100, Kernel.CPU);
+        runtime.register("com.acme.util.Calc.sum(java.util.List)", 200, Kernel.CPU, new Guard(0.01, 10), Jitter.NONE);
+        runtime.save();
+
+        String source = Files.readString(runtime.getRuntimeFile());
+        assert source.contains("SITE_0_PROBABILITY = probability(0, 1.0);") : source;
+        assert source.contains("SITE_0_EVERY = every(0, 1L);") : source;
+        assert source.contains("SITE_1_PROBABILITY = probability(1, 0.01);") : source;
+        assert source.contains("SITE_1_EVERY = every(1, 10L);") : source;
+        assert source.contains("if (ENABLED && SITE_1 > 0 && fires(1, SITE_1_PROBABILITY, SITE_1_EVERY)) {") : source;
+
+        // The guards survive a reload
+        DelayRuntime reloaded = new DelayRuntime(sourceRoot);
+        reloaded.register("com.acme.util.Strings.isBlank(java.lang.String)", 300, Kernel.CPU);
+        reloaded.save();
+        source = Files.readString(reloaded.getRuntimeFile());
+        assert source.contains("SITE_1_EVERY = every(1, 10L);") : source;
+        assert source.contains("SITE_2_EVERY = every(2, 1L);") : source;
+    }
+
+    @Test
+    public void testInvalidGuard() {
+        for (double probability : new double[] { 0, -0.5, 1.5, Double.NaN }) {
+            try {
+                new Guard(probability, 1);
+                assert false : probability;
+            } catch (IllegalArgumentException e) {
+                assert e.getMessage().contains("probability");
+            }
+        }
+        try {
+            new Guard(1, 0);
+            assert false;
+        } catch (IllegalArgumentException e) {
+            assert e.getMessage().contains("period");
+        }
+        assert Guard.ALWAYS.isAlways();
+        assert !new Guard(1, 2).isAlways();
+    }
+
+    @Test
+    public void testDistributedSites() throws IOException {
+        DelayRuntime runtime = new DelayRuntime(sourceRoot);
+        runtime.register("com.acme.util.Calc.add(int,int)", 100, Kernel.CPU);
+        runtime.register("com.acme.util.Calc.sum(java.util.List)", 200, Kernel.PARK, Guard.ALWAYS,
+                         new Jitter(Distribution.PARETO, 1.5, -7));
+        runtime.save();
+
+        String source = Files.readString(runtime.getRuntimeFile());
+        assert source.contains("SITE_0_TABLE = table(0, SITE_0, \"constant\", 0.0, 0L);") : source;
+        assert source.contains("SITE_1_TABLE = table(1, SITE_1, \"pareto\", 1.5, -7L);") : source;
+        assert source.contains("park(SITE_1_TABLE == null ? SITE_1 : draw(1, SITE_1_TABLE));") : source;
+
+        DelayRuntime reloaded = new DelayRuntime(sourceRoot);
+        reloaded.unregister(0);
+        reloaded.save();
+        source = Files.readString(reloaded.getRuntimeFile());
+        assert source.contains("SITE_1_TABLE = table(1, SITE_1, \"pareto\", 1.5, -7L);") : source;
+    }
+
+    @Test
+    public void testInvalidShape() {
+        try {
+            // Alpha 1 has no finite mean
+            new Jitter(Distribution.PARETO, 1, 0);
+            assert false;
+        } catch (IllegalArgumentException e) {
+            assert e.getMessage().contains("PARETO");
+        }
+        new Jitter(Distribution.UNIFORM, 0.5, 0);
+        assert Jitter.of(Distribution.LOGNORMAL, 0).shape() == 1;
+        assert Jitter.NONE.isConstant();
+    }
+}
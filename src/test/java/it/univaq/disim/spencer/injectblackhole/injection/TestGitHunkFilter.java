@@ -4,7 +4,13 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 
@@ -23,4 +29,69 @@ public class TestGitHunkFilter {
         String fixedPatch = GitHunkFilter.fixPatch(patch, "Blackhole.consumeCPU");
         assert fixedPatch.equals(expectedPatch) : "Expected:\n" + expectedPatch + "--\n\nActual:\n" + fixedPatch;
     }
+
+    @Test
+    public void testSeveralFiles() {
+        String a = """
+            diff --git a/src/A.java b/src/A.java
+            --- a/src/A.java
+            +++ b/src/A.java
+            @@ -1,2 +1,2 @@
+            -int  x;
+            +int x;
+            """;
+        String b = """
+            diff --git a/src/B.java b/src/B.java
+            --- a/src/B.java
+            +++ b/src/B.java
+            @@ -3,1 +3,2 @@
+            +Blackhole.consumeCPU(10L);
+             return;
+            """;
+        Map<String, String> patches = GitHunkFilter.splitPatch(a + b);
+        assert patches.keySet().equals(Set.of("src/A.java", "src/B.java")) : patches.keySet();
+        assert patches.get("src/B.java").equals(b) : patches.get("src/B.java");
+
+        // The hunks of a file are not mixed with the header of the next one
+        List<String> kept = GitHunkFilter.fixPatch(a + b, "Blackhole.consumeCPU").lines().toList();
+        assert kept.contains("diff --git a/src/B.java b/src/B.java") : kept;
+        assert !kept.contains("+int x;") : kept;
+        assert kept.contains("+Blackhole.consumeCPU(10L);") : kept;
+    }
+
+    private static void git(Path repository, String... arguments) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of("git", "-c", "user.name=test", "-c", "user.email=test@example.com"));
+        command.addAll(List.of(arguments));
+        Process process = new ProcessBuilder(command).directory(repository.toFile()).redirectErrorStream(true).start();
+        process.getInputStream().readAllBytes();
+        assert process.waitFor() == 0 : command;
+    }
+
+    @Test
+    public void testSeveralFilesInRepository(@TempDir Path repository) throws IOException, InterruptedException {
+        Path a = repository.resolve("A.java");
+        Path b = repository.resolve("B.java");
+        Files.writeString(a, "class A {\n    void m() {\n        int  x = 1;\n    }\n}\n");
+        Files.writeString(b, "class B {\n    void m() {\n        return;\n    }\n}\n");
+        git(repository, "init", "-q");
+        git(repository, "add", ".");
+        git(repository, "commit", "-q", "-m", "initial");
+
+        // A only has a reformatting, B has an injection
+        Files.writeString(a, "class A {\n    void m() {\n        int x = 1;\n    }\n}\n");
+        Files.writeString(b, "class B {\n    void m() {\n        Blackhole.consumeCPU(10L);\n        return;\n    }\n}\n");
+        GitHunkFilter filter = new GitHunkFilter(repository);
+        Map<Path, RuntimeException> failures = filter.applyFilteredPatches(List.of(a, b), "Blackhole.consumeCPU");
+        assert failures.keySet().equals(Set.of(a)) : failures;
+        assert Files.readString(a).contains("int  x") : "A must be restored";
+        assert Files.readString(b).contains("Blackhole.consumeCPU(10L);") : "B must keep its injection";
+
+        // A failing git command is reported
+        try {
+            filter.discardChanges(Path.of("Missing.java"));
+            assert false : "Expected the checkout to fail";
+        } catch (RuntimeException e) {
+            assert e.getMessage().contains("git checkout failed") : e.getMessage();
+        }
+    }
 }
@@ -0,0 +1,72 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+public class TestSnapshotHunkFilter {
+
+    private static final String ORIGINAL_FILE = "/filter_original.txt";
+
+    private static String read(String resource) throws IOException {
+        Path path = Paths.get(TestSnapshotHunkFilter.class.getResource(resource).getPath());
+        return Files.readString(path);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "/filter_faulty_expected.txt, /filter_faulty_expected.txt",
+        "/filter_faulty.txt, /filter_faulty_expected.txt"
+    })
+    public void testFilter(String modifiedFile, String expectedFile) throws IOException {
+        String original = read(ORIGINAL_FILE);
+        String expected = read(expectedFile);
+        String filtered = SnapshotHunkFilter.filter(original, read(modifiedFile), "Blackhole.consumeCPU");
+        assert filtered.equals(expected) : "Expected:\n" + expected + "--\n\nActual:\n" + filtered;
+    }
+
+    @Test
+    public void testFilterRejectsRemovals() throws IOException {
+        String original = read(ORIGINAL_FILE);
+        String modified = read("/filter_damaged.txt");
+        try {
+            SnapshotHunkFilter.filter(original, modified, "Blackhole.consumeCPU");
+            assert false : "Expected the patch to be rejected";
+        } catch (RuntimeException e) {
+            assert e.getMessage().contains("removals") : "Unexpected error: " + e.getMessage();
+        }
+    }
+
+    @Test
+    public void testFailureKeepsEarlierInjections(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("Calc.java");
+        String original = "class Calc {\n    int add(int a, int b) {\n        return a + b;\n    }\n\n"
+            + "    int sub(int a, int b) {\n        return a - b;\n    }\n}\n";
+        Files.writeString(file, original);
+        SnapshotHunkFilter filter = new SnapshotHunkFilter();
+
+        // The first injection is kept
+        filter.snapshot(file);
+        String first = original.replace("        return a + b;", "        Blackhole.consumeCPU(1L);\n        return a + b;");
+        Files.writeString(file, first);
+        filter.applyFilteredPatch(file, "Blackhole.consumeCPU");
+        assert Files.readString(file).equals(first);
+
+        // The second one damages the file, which is restored with the first injection
+        filter.snapshot(file);
+        Files.writeString(file, first.replace("        return a - b;", "        Blackhole.consumeCPU(2L);\n        return b;"));
+        try {
+            filter.applyFilteredPatch(file, "Blackhole.consumeCPU");
+            assert false : "Expected the patch to be rejected";
+        } catch (RuntimeException e) {
+            assert e.getMessage().contains("removals") : "Unexpected error: " + e.getMessage();
+        }
+        assert Files.readString(file).equals(first) : Files.readString(file);
+    }
+}
@@ -0,0 +1,74 @@
+package it.univaq.disim.spencer.injectblackhole.injection;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import it.univaq.disim.spencer.injectblackhole.analysis.CodeBase;
+import it.univaq.disim.spencer.injectblackhole.analysis.Method;
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.declaration.CtMethod;
+
+public class TestSourceSplicer {
+
+    private static final String TEST_CLASS = "/TestClass.java";
+    private static final String TEST_METHOD = "nestedStatements";
+    private static final String CODE = "org.openjdk.jmh.infra.Blackhole.consumeCPU(10L);";
+
+    @TempDir
+    Path tempDir;
+    private Path classFile;
+    private String original;
+    private Method method;
+
+    @BeforeEach
+    void setup() throws IOException {
+        Path resource = Paths.get(TestSourceSplicer.class.getResource(TEST_CLASS).getPath());
+        classFile = Files.copy(resource, tempDir.resolve("TestClass.java"));
+        original = Files.readString(classFile);
+        CodeBase codeBase = new CodeBase(classFile);
+        codeBase.load();
+        for (CtMethod<?> m : codeBase.getMethods()) {
+            if (m.getSimpleName().equals(TEST_METHOD)) {
+                method = new Method(m);
+            }
+        }
+    }
+
+    @Test
+    public void testInsertAtBegin() throws IOException {
+        SourceSplicer splicer = new SourceSplicer();
+        splicer.insertAtBegin(method.getMethod(), CODE);
+        splicer.save(method.getMethod());
+
+        String expected = original.replace("        int a = 0;\n", "        " + CODE + "\n        int a = 0;\n");
+        String actual = Files.readString(classFile);
+        assert expected.equals(actual) : "Expected:\n" + expected + "--\n\nActual:\n" + actual;
+    }
+
+    @Test
+    public void testInsertBeforeNestedStatements() throws IOException {
+        SourceSplicer splicer = new SourceSplicer();
+        List<CtStatement> statements = method.getTopLevelStatements();
+        for (CtStatement statement : statements) {
+            if (splicer.canInsertBefore(statement)) {
+                splicer.insertBefore(statement, CODE);
+            }
+        }
+        splicer.save(method.getMethod());
+
+        // Every statement is preceded by our statement, with the same indentation, and nothing else changed
+        String actual = Files.readString(classFile);
+        String withoutInjections = actual.replaceAll("(?m)^ *" + Pattern.quote(CODE) + "\n", "");
+        assert withoutInjections.equals(original) : "Unexpected changes:\n" + actual;
+        long injections = actual.lines().filter(line -> line.contains(CODE)).count();
+        assert injections == statements.size() : "Expected " + statements.size() + " injections, but got " + injections;
+    }
+}
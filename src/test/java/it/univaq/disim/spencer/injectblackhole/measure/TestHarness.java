@@ -0,0 +1,77 @@
+package it.univaq.disim.spencer.injectblackhole.measure;
+
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class TestHarness {
+
+    static class Nested {
+        int size(List<String> values, int[] more, Map<String, Integer> counts, Object other) {
+            return values.size() + more.length + counts.size() + (other == null ? 0 : 1);
+        }
+
+        int length(String value) {
+            return value.length();
+        }
+
+        void spin(long n) {
+            long s = 0;
+            for (long i = 0; i < n + 100_000; i++) {
+                s += i;
+            }
+            assert s != 1;
+        }
+    }
+
+    @Test
+    public void testResolve() throws ReflectiveOperationException {
+        Method abs = Harness.resolve("java.lang.Math.abs(int)");
+        assert abs.getDeclaringClass() == Math.class && abs.getParameterTypes()[0] == int.class;
+        Method format = Harness.resolve("java.lang.String.format(java.lang.String,java.lang.Object[])");
+        assert format.getParameterTypes()[1] == Object[].class;
+        // Nested classes are named with dots, as in the sources
+        Method size = Harness.resolve(
+            "it.univaq.disim.spencer.injectblackhole.measure.TestHarness.Nested.size(java.util.List,int[],java.util.Map,java.lang.Object)");
+        assert size.getDeclaringClass() == Nested.class;
+    }
+
+    @Test
+    public void testDefaultArguments() throws ReflectiveOperationException {
+        Harness harness = new Harness(
+            "it.univaq.disim.spencer.injectblackhole.measure.TestHarness.Nested.size(java.util.List,int[],java.util.Map,java.lang.Object)");
+        assert harness != null;
+        Object[] arguments = Harness.defaultArguments(new Class<?>[] { List.class, int[].class, Map.class, Object.class, long.class });
+        assert arguments[0].equals(List.of()) && ((int[]) arguments[1]).length == 0 && arguments[2].equals(Map.of());
+        assert arguments[3] == null && arguments[4].equals(0L);
+    }
+
+    @Test
+    public void testProbe() throws ReflectiveOperationException {
+        String nested = "it.univaq.disim.spencer.injectblackhole.measure.TestHarness.Nested.";
+        assert new Harness(nested + "size(java.util.List,int[],java.util.Map,java.lang.Object)").probe() == null;
+        // A String gets "", not null
+        assert new Harness(nested + "length(java.lang.String)").probe() == null;
+        assert new Harness("java.lang.String.valueOf(char[])").probe() == null;
+        assert new Harness("java.util.Objects.requireNonNull(java.lang.Object)").probe() instanceof NullPointerException;
+    }
+
+    @Test
+    public void testMeasure() throws Exception {
+        // A void method is benchmarked like the others, and an empty call costs less than the method
+        Path classes = Path.of(TestHarness.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        Measurement measurement = new Measurement(List.of(classes), List.of(classes));
+        measurement.setForks(1);
+        measurement.setWarmupIterations(1);
+        measurement.setIterations(2);
+        measurement.setIterationMillis(50);
+        Measurement.Result result = measurement.measure(
+            "it.univaq.disim.spencer.injectblackhole.measure.TestHarness.Nested.spin(long)");
+        assert result.error() == null : result.error();
+        double overhead = result.baseline().overheadNanosPerCall();
+        assert overhead > 0 && overhead < result.baseline().nanosPerCall().mean() : overhead;
+    }
+}
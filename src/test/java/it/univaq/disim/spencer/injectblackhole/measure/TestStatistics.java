@@ -0,0 +1,46 @@
+package it.univaq.disim.spencer.injectblackhole.measure;
+
+import org.junit.jupiter.api.Test;
+
+public class TestStatistics {
+
+    @Test
+    public void testSummary() {
+        Statistics.Summary summary = Statistics.summarize(new double[] { 9, 10, 11, 10, 10 });
+        assert summary.samples() == 5;
+        assert summary.mean() == 10;
+        assert Math.abs(summary.stdev() - Math.sqrt(0.5)) < 1e-9 : summary;
+        // t(4) = 2.776
+        assert Math.abs(summary.high() - (10 + 2.776 * Math.sqrt(0.5) / Math.sqrt(5))) < 1e-9 : summary;
+    }
+
+    @Test
+    public void testQuantiles() {
+        assert Statistics.tQuantile(1) == 12.706;
+        assert Statistics.tQuantile(30) == 2.042;
+        // The expansion continues the table, and tends to the normal quantile
+        assert Math.abs(Statistics.tQuantile(40) - 2.021) < 1e-3 : Statistics.tQuantile(40);
+        assert Math.abs(Statistics.tQuantile(120) - 1.980) < 1e-3 : Statistics.tQuantile(120);
+        assert Statistics.tQuantile(1e9) > 1.959 && Statistics.tQuantile(1e9) < 1.961;
+    }
+
+    @Test
+    public void testCompare() {
+        Statistics.Summary baseline = Statistics.summarize(new double[] { 99, 100, 101, 100, 100, 99, 101, 100 });
+        Statistics.Summary injected = Statistics.summarize(new double[] { 149, 150, 151, 150, 150, 149, 151, 150 });
+        Statistics.Difference slowdown = Statistics.compare(baseline, injected);
+        assert slowdown.absolute() == 50;
+        assert slowdown.absoluteLow() < 50 && slowdown.absoluteHigh() > 50 && slowdown.absoluteLow() > 48 : slowdown;
+        assert Math.abs(slowdown.relative() - 0.5) < 1e-9 : slowdown;
+        assert slowdown.relativeLow() < 0.5 && slowdown.relativeHigh() > 0.5 && slowdown.relativeLow() > 0.47 : slowdown;
+    }
+
+    @Test
+    public void testCompareWithoutVariance() {
+        Statistics.Summary baseline = Statistics.summarize(new double[] { 100, 100, 100 });
+        Statistics.Summary injected = Statistics.summarize(new double[] { 150, 150, 150 });
+        Statistics.Difference slowdown = Statistics.compare(baseline, injected);
+        assert slowdown.absoluteLow() == 50 && slowdown.absoluteHigh() == 50 : slowdown;
+        assert slowdown.relativeLow() == 0.5 && slowdown.relativeHigh() == 0.5 : slowdown;
+    }
+}
@@ -0,0 +1,82 @@
+package it.univaq.disim.spencer.injectblackhole.profile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+public class TestProfile {
+
+    private static final String PROFILE = "/profile_collapsed.txt";
+    private static final List<String> METHODS = List.of(
+        "com.acme.util.Calc.add(int,int)",
+        "com.acme.util.Calc.sum(java.util.List)",
+        "com.acme.util.Strings.repeat(java.lang.String,int)",
+        "com.acme.util.Strings.isBlank(java.lang.String)");
+    private static Profile profile;
+
+    @BeforeAll
+    static void setup() throws IOException {
+        Path profileFile = Paths.get(TestProfile.class.getResource(PROFILE).getPath());
+        profile = Profile.load(profileFile);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "com.acme.util.Calc.sum, SELF, 60",
+        "com.acme.util.Calc.sum, TOTAL, 70",
+        "com.acme.util.Bench.run, SELF, 0",
+        "com.acme.util.Bench.run, TOTAL, 100",
+        "com.acme.util.Strings.repeat, SELF, 10"
+    })
+    public void testGetSamples(String frame, ProfileWeight weight, long expected) {
+        long actual = profile.getSamples(frame, weight);
+        assert expected == actual : "Expected " + expected + " samples, but got " + actual;
+    }
+
+    @Test
+    public void testSampleProportionally() {
+        ProfileSampler sampler = new ProfileSampler(profile, METHODS, ProfileWeight.SELF, 0, 100);
+        Random random = new Random(42);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 9000; i++) {
+            counts.merge(sampler.sample(random), 1, Integer::sum);
+        }
+        // 60:20:10 samples, isBlank never runs
+        assert counts.get("com.acme.util.Calc.sum(java.util.List)") > 5500 : counts;
+        assert counts.get("com.acme.util.Calc.add(int,int)") > 1700 : counts;
+        assert !counts.containsKey("com.acme.util.Strings.isBlank(java.lang.String)") : counts;
+    }
+
+    @Test
+    public void testPercentileBounds() {
+        // Only the hottest third
+        ProfileSampler sampler = new ProfileSampler(profile, METHODS, ProfileWeight.SELF, 67, 100);
+        Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            String method = sampler.sample(random);
+            assert method.equals("com.acme.util.Calc.sum(java.util.List)") : "Unexpected " + method;
+        }
+    }
+
+    @Test
+    public void testInvalidPercentileBounds() {
+        for (double[] bounds : new double[][] { { 60, 40 }, { -1, 100 }, { 0, 101 }, { Double.NaN, 100 } }) {
+            try {
+                new ProfileSampler(profile, METHODS, ProfileWeight.SELF, bounds[0], bounds[1]);
+                assert false : Arrays.toString(bounds);
+            } catch (IllegalArgumentException e) {
+                assert e.getMessage().contains("percentiles") : e.getMessage();
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package it.univaq.disim.spencer.injectblackhole.selection;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class TestWeightedSampler {
+
+    private static Map<String, Double> candidates() {
+        Map<String, Double> candidates = new LinkedHashMap<>();
+        candidates.put("a", 1.0);
+        candidates.put("b", 3.0);
+        candidates.put("c", 0.0);
+        candidates.put("d", 6.0);
+        return candidates;
+    }
+
+    @Test
+    public void testDrawIsFinite() {
+        WeightedSampler<String> sampler = new WeightedSampler<>(candidates());
+        assert sampler.size() == 3 : "Candidates without weight must be ignored";
+
+        Random random = new Random(42);
+        Set<String> drawn = new HashSet<>();
+        while (!sampler.isEmpty()) {
+            assert drawn.add(sampler.draw(random)) : "A candidate was drawn twice";
+        }
+        assert drawn.equals(Set.of("a", "b", "d")) : "Drawn: " + drawn;
+    }
+
+    @Test
+    public void testSampleIsProportional() {
+        WeightedSampler<String> sampler = new WeightedSampler<>(candidates());
+        Random random = new Random(42);
+        Map<String, Integer> counts = new HashMap<>();
+        int draws = 100_000;
+        for (int i = 0; i < draws; i++) {
+            counts.merge(sampler.sample(random), 1, Integer::sum);
+        }
+        assert Math.abs(counts.get("a") / (double) draws - 0.1) < 0.01 : "Counts: " + counts;
+        assert Math.abs(counts.get("b") / (double) draws - 0.3) < 0.01 : "Counts: " + counts;
+        assert Math.abs(counts.get("d") / (double) draws - 0.6) < 0.01 : "Counts: " + counts;
+    }
+}